@@ -0,0 +1,53 @@
+package treesub;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Translating codons to amino acids, for unambiguous codons and codons with IUPAC ambiguous nucleotides.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+    @Param({"unambiguous", "ambiguous"})
+    public String codons;
+
+    private String[] tlas;
+    private int[] codonIndexes;
+
+    @Setup
+    public void setup() {
+        if (codons.equals("unambiguous")) {
+            tlas = new String[]{"ATG", "AAA", "CCC", "GCT", "AGA", "TTG", "CAT", "GGG"};
+        } else {
+            tlas = new String[]{"ATN", "RAA", "CYC", "GC-", "AGW", "NNN", "CAK", "SGG"};
+        }
+
+        codonIndexes = new int[tlas.length];
+        for (int i = 0; i < tlas.length; i++) {
+            codonIndexes[i] = Utils.getCodonIndex(tlas[i].charAt(0), tlas[i].charAt(1), tlas[i].charAt(2));
+        }
+    }
+
+    @Benchmark
+    public void getAminoAcidsForCodonTLA(Blackhole bh) {
+        for (String tla : tlas) bh.consume(Utils.getAminoAcidsForCodonTLA(tla));
+    }
+
+    @Benchmark
+    public void getAminoAcidChar(Blackhole bh) {
+        for (int codonIndex : codonIndexes) bh.consume(Utils.getAminoAcidChar(codonIndex));
+    }
+}
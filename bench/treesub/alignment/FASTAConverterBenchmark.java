@@ -0,0 +1,55 @@
+package treesub.alignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import treesub.bench.SyntheticData;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Converting synthetic FASTA alignments of different sizes (taxa x codons) to PHYLIP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FASTAConverterBenchmark {
+    @Param({"100x1000", "1000x1000", "1000x10000"})
+    public String size;
+
+    @Param({"RAXML", "PAML", "ALL"})
+    public FASTAConverter.OUTPUT output;
+
+    private File dir;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = SyntheticData.createTempDir("treesub-bench");
+        SyntheticData.ofSize(size, 12345).writeFASTA(dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public String run() throws Exception {
+        return new FASTAConverter().run(dir.toString(), output);
+    }
+}
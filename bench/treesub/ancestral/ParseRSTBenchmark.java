@@ -0,0 +1,110 @@
+package treesub.ancestral;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pal.tree.Node;
+import pal.tree.Tree;
+import treesub.Constants;
+import treesub.bench.SyntheticData;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The steps of ParseRST.run on synthetic reconstructions of different sizes (taxa x codons): reading the
+ * rst file, finding the substitutions on every branch, and writing substitutions.tree and substitutions.tsv.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseRSTBenchmark {
+    @Param({"100x1000", "1000x1000", "1000x10000"})
+    public String size;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File dir;
+    private String rst;
+    private ParseRST parsed;
+
+    // The sequence keys of the child and parent of every branch
+    private String[] children, parents;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = SyntheticData.createTempDir("treesub-bench");
+        SyntheticData.ofSize(size, 12345).writeRST(dir);
+        rst = dir + "/" + Constants.PAML_RECONSTRUCTION_FILE;
+
+        parsed = new ParseRST();
+        parsed.setParallelism(parallelism);
+        parsed.loadRealNames(dir + "/" + Constants.ALIGNMENT_NAMES);
+        parsed.readReconstruction(rst);
+        parsed.findSubstitutions();
+
+        Tree tree = parsed.getTree();
+        int branches = tree.getExternalNodeCount() + tree.getInternalNodeCount() - 1;
+        children = new String[branches];
+        parents = new String[branches];
+
+        int b = 0;
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) b = addBranch(tree.getExternalNode(i), b);
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) b = addBranch(tree.getInternalNode(i), b);
+    }
+
+    private int addBranch(Node n, int b) {
+        if (n.isRoot()) return b;
+        children[b] = parsed.getSequenceKey(n);
+        parents[b] = parsed.getSequenceKey(n.getParent());
+        return b + 1;
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public ParseRST readReconstruction() throws Exception {
+        ParseRST p = new ParseRST();
+        p.readReconstruction(rst);
+        return p;
+    }
+
+    @Benchmark
+    public void getSubstitutions(Blackhole bh) {
+        for (int i = 0; i < children.length; i++) bh.consume(parsed.getSubstitutions(children[i], parents[i]));
+    }
+
+    @Benchmark
+    public void getSubstitutionsBySite(Blackhole bh) {
+        for (int i = 0; i < children.length; i++) bh.consume(parsed.getSubstitutionsBySite(children[i], parents[i]));
+    }
+
+    @Benchmark
+    public void findSubstitutions() {
+        parsed.findSubstitutions();
+    }
+
+    @Benchmark
+    public void writeResults() throws Exception {
+        parsed.writeResults(dir.toString());
+    }
+}
@@ -0,0 +1,396 @@
+package treesub.ancestral;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+import pal.tree.Node;
+import pal.tree.Tree;
+import treesub.Constants;
+import treesub.Utils;
+import treesub.bench.SyntheticData;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Checks the substitutions ParseRST finds on every branch of synthetic reconstructions against two
+ * references: getSubstitutionsBySite, which compares the sequences one codon at a time rather than a word
+ * (four codons) at a time, and a plain comparison of the codons in the text written to 'rst', which does
+ * not go through CodonStore at all and so also catches mistakes in packing the codons. Both
+ * getSubstitutions and the SubstitutionTable filled by findSubstitutions are checked. The reconstructions
+ * have codon counts that are not a multiple of four, ambiguous nucleotides, and upper- and lower-case
+ * sequences. Each reconstruction is also parsed with the branches split over several threads, which must
+ * give the same table, row for row. Finally, the substitutions are written to substitutions.tsv and
+ * substitutions.bin, and every row read back by BinarySubstitutionReader must match its line in the TSV;
+ * one larger reconstruction has more than BLOCK_ROWS substitutions, so the binary file has several blocks.
+ * The queries of the SubstitutionIndex, CladeSites and SubstitutionStats are also checked against the same queries answered by brute force
+ * from the reference substitutions and the tree. Needs no JMH.
+ *
+ * Usage: java treesub.ancestral.ParseRSTCheck (or ant check)
+ */
+public class ParseRSTCheck {
+    private static final int TAXA = 200;
+    private static final int[] CODONS = {1, 2, 3, 5, 6, 7, 13, 101, 1003};
+    private static final long[] SEEDS = {1, 2, 3};
+    private static final String UNAMBIGUOUS = "TCAGtcag";
+    private static final boolean[] NON_SYNONYMOUS_ONLY = {false, true};
+    private static final int PARALLELISM = 4;
+
+    // Enough taxa and codons for more than BLOCK_ROWS substitutions (about 80,000)
+    private static final int BLOCK_TAXA = 1000;
+    private static final int BLOCK_CODONS = 4001;
+
+    private int branches = 0;
+    private int substitutions = 0;
+    private int ambiguous = 0;
+    private int failures = 0;
+    private int tables = 0;
+    private int binaryRows = 0;
+
+    public static void main(String[] args) throws Exception {
+        ParseRSTCheck check = new ParseRSTCheck();
+        File dir = SyntheticData.createTempDir("treesub-check");
+        try {
+            for (int codons : CODONS) {
+                for (long seed : SEEDS) {
+                    check.check(dir, new SyntheticData(TAXA, codons, seed), false);
+                    check.check(dir, new SyntheticData(TAXA, codons, seed), true);
+                }
+            }
+
+            SyntheticData data = new SyntheticData(BLOCK_TAXA, BLOCK_CODONS, SEEDS[0]);
+            data.writeRST(dir);
+            int rows = check.checkBinary(dir, parse(dir, 1), data, false);
+            if (rows <= BinarySubstitutionWriter.BLOCK_ROWS) {
+                System.out.printf("Only %s substitutions in the larger reconstruction, not more than %s.\n", rows,
+                        BinarySubstitutionWriter.BLOCK_ROWS);
+                System.exit(1);
+            }
+        } finally {
+            SyntheticData.deleteDir(dir);
+        }
+
+        System.out.printf("Checked %s branches with %s substitutions (%s with ambiguous codons), %s tables " +
+                "found in parallel and %s rows read back from substitutions.bin: %s failed.\n", check.branches,
+                check.substitutions, check.ambiguous, check.tables, check.binaryRows, check.failures);
+        if (check.ambiguous == 0) {
+            System.out.println("No substitutions with ambiguous codons were checked.");
+            System.exit(1);
+        }
+        if (check.failures > 0) System.exit(1);
+    }
+
+    private void check(File dir, SyntheticData data, boolean lowerCase) throws Exception {
+        data.setLowerCase(lowerCase);
+        data.writeRST(dir);
+
+        ParseRST p = parse(dir, 1);
+        Tree tree = p.getTree();
+        Map<Integer, List<Substitution>> expected = Maps.newHashMap();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) check(p, data, tree.getExternalNode(i), lowerCase, expected);
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) check(p, data, tree.getInternalNode(i), lowerCase, expected);
+
+        checkIndex(p, expected, data, lowerCase);
+        checkCladeSites(p, expected, data, lowerCase);
+        checkStats(p, expected, data, lowerCase);
+
+        // The tree has more than BRANCHES_PER_TASK branches, so this forks and joins several tasks
+        checkTable(p.getSubstitutionTable(), parse(dir, PARALLELISM).getSubstitutionTable(), data, lowerCase);
+
+        checkBinary(dir, p, data, lowerCase);
+    }
+
+    /**
+     * Checks every query of the SubstitutionIndex for every node and site against a brute-force answer: the
+     * clade is found by walking the tree, and the substitutions are the expected ones for each branch
+     */
+    private void checkIndex(ParseRST p, Map<Integer, List<Substitution>> expected, SyntheticData data, boolean lowerCase) {
+        SubstitutionIndex index = p.getSubstitutionIndex();
+        for (Node n : getNodes(p.getTree())) {
+            int branch = p.getBranchNumber(n);
+            List<Integer> clade = Lists.newArrayList();
+            addClade(p, n, clade);
+            if (!Ints.asList(index.getCladeBranches(branch)).equals(clade)) {
+                fail(data, lowerCase, String.format("getCladeBranches(%s) is %s, expected %s", branch,
+                        Ints.asList(index.getCladeBranches(branch)), clade));
+            }
+
+            for (boolean nonSynonymousOnly : NON_SYNONYMOUS_ONLY) {
+                List<Substitution> subs = filter(expected.get(branch), nonSynonymousOnly);
+                List<Substitution> found = index.getSubstitutions(branch, nonSynonymousOnly);
+                if (!same(subs, found) || index.getSubstitutionCount(branch, nonSynonymousOnly) != subs.size()) {
+                    fail(data, lowerCase, String.format("getSubstitutions(%s, %s) is %s (count %s), expected %s", branch,
+                            nonSynonymousOnly, found, index.getSubstitutionCount(branch, nonSynonymousOnly), subs));
+                }
+
+                List<Substitution> cladeSubs = Lists.newArrayList();
+                for (int b : clade) cladeSubs.addAll(filter(expected.get(b), nonSynonymousOnly));
+                found = index.getCladeSubstitutions(branch, nonSynonymousOnly);
+                int count = index.getCladeSubstitutionCount(branch, nonSynonymousOnly);
+                if (!same(cladeSubs, found) || count != cladeSubs.size()) {
+                    fail(data, lowerCase, String.format("getCladeSubstitutions(%s, %s) is %s (count %s), expected %s",
+                            branch, nonSynonymousOnly, found, count, cladeSubs));
+                }
+            }
+        }
+
+        for (int site = 1; site <= data.getCodonCount(); site++) {
+            for (boolean nonSynonymousOnly : NON_SYNONYMOUS_ONLY) {
+                List<Integer> branches = Lists.newArrayList();
+                for (Map.Entry<Integer, List<Substitution>> e : expected.entrySet()) {
+                    for (Substitution s : filter(e.getValue(), nonSynonymousOnly)) {
+                        if (s.site == site) branches.add(e.getKey());
+                    }
+                }
+                Collections.sort(branches);
+
+                List<Integer> found = Ints.asList(index.getBranches(site, nonSynonymousOnly));
+                if (!found.equals(branches) || index.getBranchCount(site, nonSynonymousOnly) != branches.size()) {
+                    fail(data, lowerCase, String.format("getBranches(%s, %s) is %s (count %s), expected %s", site,
+                            nonSynonymousOnly, found, index.getBranchCount(site, nonSynonymousOnly), branches));
+                }
+            }
+        }
+    }
+
+    // The sites changed on the branches below each node, found from the clade and the expected substitutions
+    private void checkCladeSites(ParseRST p, Map<Integer, List<Substitution>> expected, SyntheticData data, boolean lowerCase) {
+        CladeSites cladeSites = p.getCladeSites();
+        for (Node n : getNodes(p.getTree())) {
+            int branch = p.getBranchNumber(n);
+            List<Integer> clade = Lists.newArrayList();
+            addClade(p, n, clade);
+
+            BitSet sites = new BitSet();
+            BitSet nonSynonymousSites = new BitSet();
+            for (int b : clade) {
+                for (Substitution s : expected.get(b)) {
+                    sites.set(s.site);
+                    if (!s.isSynonymous()) nonSynonymousSites.set(s.site);
+                }
+            }
+
+            if (!cladeSites.getSites(branch).equals(sites) || cladeSites.getSiteCount(branch) != sites.cardinality()) {
+                fail(data, lowerCase, String.format("CladeSites.getSites(%s) is %s (count %s), expected %s", branch,
+                        cladeSites.getSites(branch), cladeSites.getSiteCount(branch), sites));
+            }
+            if (!cladeSites.getNonSynonymousSites(branch).equals(nonSynonymousSites)
+                    || cladeSites.getNonSynonymousSiteCount(branch) != nonSynonymousSites.cardinality()) {
+                fail(data, lowerCase, String.format("CladeSites.getNonSynonymousSites(%s) is %s (count %s), expected %s",
+                        branch, cladeSites.getNonSynonymousSites(branch), cladeSites.getNonSynonymousSiteCount(branch),
+                        nonSynonymousSites));
+            }
+        }
+    }
+
+    // The totals for each site and branch, counted from the expected substitutions
+    private void checkStats(ParseRST p, Map<Integer, List<Substitution>> expected, SyntheticData data, boolean lowerCase) {
+        SubstitutionStats stats = p.getStats();
+        if (stats.getSiteCount() != data.getCodonCount()) {
+            fail(data, lowerCase, String.format("SubstitutionStats has %s sites", stats.getSiteCount()));
+            return;
+        }
+
+        int[] siteSubstitutions = new int[data.getCodonCount() + 1];
+        int[] siteNonSynonymous = new int[data.getCodonCount() + 1];
+        for (Map.Entry<Integer, List<Substitution>> e : expected.entrySet()) {
+            int branch = e.getKey();
+            int nonSynonymous = filter(e.getValue(), true).size();
+            if (stats.getBranchSubstitutions(branch) != e.getValue().size() || stats.getBranchNonSynonymous(branch) != nonSynonymous) {
+                fail(data, lowerCase, String.format("branch %s has %s substitutions (%s non-synonymous), expected %s (%s)",
+                        branch, stats.getBranchSubstitutions(branch), stats.getBranchNonSynonymous(branch),
+                        e.getValue().size(), nonSynonymous));
+            }
+
+            for (Substitution s : e.getValue()) {
+                siteSubstitutions[s.site]++;
+                if (!s.isSynonymous()) siteNonSynonymous[s.site]++;
+            }
+        }
+
+        for (int site = 1; site <= data.getCodonCount(); site++) {
+            if (stats.getSiteSubstitutions(site) != siteSubstitutions[site] || stats.getSiteNonSynonymous(site) != siteNonSynonymous[site]) {
+                fail(data, lowerCase, String.format("site %s has %s substitutions (%s non-synonymous), expected %s (%s)",
+                        site, stats.getSiteSubstitutions(site), stats.getSiteNonSynonymous(site), siteSubstitutions[site],
+                        siteNonSynonymous[site]));
+            }
+        }
+    }
+
+    private static List<Node> getNodes(Tree tree) {
+        List<Node> nodes = Lists.newArrayList();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) nodes.add(tree.getExternalNode(i));
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) nodes.add(tree.getInternalNode(i));
+        return nodes;
+    }
+
+    // The branches below the node, in pre-order, left to right
+    private static void addClade(ParseRST p, Node n, List<Integer> clade) {
+        for (int i = 0; i < n.getChildCount(); i++) {
+            clade.add(p.getBranchNumber(n.getChild(i)));
+            addClade(p, n.getChild(i), clade);
+        }
+    }
+
+    private static List<Substitution> filter(List<Substitution> substitutions, boolean nonSynonymousOnly) {
+        List<Substitution> found = Lists.newArrayList();
+        for (Substitution s : substitutions) {
+            if (!nonSynonymousOnly || !s.isSynonymous()) found.add(s);
+        }
+        return found;
+    }
+
+    private void fail(SyntheticData data, boolean lowerCase, String problem) {
+        if (failures < 10) {
+            System.out.printf("%s codons%s: %s\n", data.getCodonCount(), lowerCase ? " (lower case)" : "", problem);
+        }
+        failures++;
+    }
+
+    private static ParseRST parse(File dir, int parallelism) throws Exception {
+        ParseRST p = new ParseRST();
+        p.setParallelism(parallelism);
+        p.loadRealNames(dir + "/" + Constants.ALIGNMENT_NAMES);
+        p.readReconstruction(dir + "/" + Constants.PAML_RECONSTRUCTION_FILE);
+        p.findSubstitutions();
+        return p;
+    }
+
+    // The table found in parallel must be the same, row for row, as the one found on a single thread
+    private void checkTable(SubstitutionTable expected, SubstitutionTable parallel, SyntheticData data, boolean lowerCase) {
+        tables++;
+        String problem = null;
+        if (parallel.size() != expected.size()) {
+            problem = String.format("%s rows, expected %s", parallel.size(), expected.size());
+        } else {
+            for (int row = 0; row < expected.size() && problem == null; row++) {
+                if (!getRow(parallel, row).equals(getRow(expected, row))) {
+                    problem = String.format("row %s is %s, expected %s", row, getRow(parallel, row), getRow(expected, row));
+                }
+            }
+        }
+
+        if (problem != null) {
+            if (failures < 10) {
+                System.out.printf("%s codons%s, parallelism %s: %s\n", data.getCodonCount(),
+                        lowerCase ? " (lower case)" : "", PARALLELISM, problem);
+            }
+            failures++;
+        }
+    }
+
+    /**
+     * Writes the results and checks that each row read from substitutions.bin, written out as it is in
+     * substitutions.tsv, is the same as the TSV's line
+     *
+     * @return the number of rows in the TSV
+     */
+    private int checkBinary(File dir, ParseRST p, SyntheticData data, boolean lowerCase) throws Exception {
+        p.setBinaryOutput(true);
+        p.writeResults(dir.getPath());
+
+        List<String> expected = Files.readLines(new File(dir, "substitutions.tsv"), Charsets.US_ASCII);
+        expected = expected.subList(1, expected.size()); // the header
+
+        List<String> read = Lists.newArrayList();
+        BinarySubstitutionReader r = new BinarySubstitutionReader(dir + "/substitutions.bin");
+        try {
+            if (r.getSiteCount() != data.getCodonCount()) read.add("site count " + r.getSiteCount());
+            while (r.next()) {
+                read.add(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s%s%s\t%s", r.getBranch(), r.getSite(),
+                        r.getCodonFrom(), r.getCodonTo(), r.getAminoAcidFrom(), r.getAminoAcidTo(),
+                        r.getAminoAcidFrom(), r.getSite(), r.getAminoAcidTo(), r.isNonSynonymous() ? "*" : ""));
+            }
+        } finally {
+            r.close();
+        }
+
+        binaryRows += read.size();
+        if (!read.equals(expected)) {
+            int row = 0;
+            while (row < read.size() && row < expected.size() && read.get(row).equals(expected.get(row))) row++;
+            if (failures < 10) {
+                System.out.printf("%s codons%s, substitutions.bin: %s rows, expected %s; row %s is '%s', expected '%s'\n",
+                        data.getCodonCount(), lowerCase ? " (lower case)" : "", read.size(), expected.size(), row,
+                        row < read.size() ? read.get(row) : "missing", row < expected.size() ? expected.get(row) : "none");
+            }
+            failures++;
+        }
+        return expected.size();
+    }
+
+    private static String getRow(SubstitutionTable t, int row) {
+        return String.format("%s %s %s %s %s %s %s", t.getBranch(row), t.getSite(row), t.getCodonFromIndex(row),
+                t.getCodonToIndex(row), t.getAminoAcidFrom(row), t.getAminoAcidTo(row), t.isSynonymous(row));
+    }
+
+    // Checks the substitutions on the branch above the node, and adds the expected ones to the map by branch
+    private void check(ParseRST p, SyntheticData data, Node n, boolean lowerCase, Map<Integer, List<Substitution>> byBranch) {
+        if (n.isRoot()) {
+            byBranch.put(p.getBranchNumber(n), Collections.<Substitution>emptyList());
+            return;
+        }
+        String child = p.getSequenceKey(n);
+        String parent = p.getSequenceKey(n.getParent());
+
+        List<Substitution> expected = compareText(data.getSequence(child), data.getSequence(parent));
+        byBranch.put(p.getBranchNumber(n), expected);
+        List<Substitution> found = p.getSubstitutions(child, parent);
+        List<Substitution> bySite = p.getSubstitutionsBySite(child, parent);
+
+        List<Substitution> table = Lists.newArrayList();
+        SubstitutionTable.Cursor c = p.getSubstitutionTable().cursor(p.getBranchNumber(n));
+        while (c.next()) table.add(c.toSubstitution());
+
+        branches++;
+        substitutions += expected.size();
+        for (Substitution s : expected) {
+            if (isAmbiguous(s.codonFrom) || isAmbiguous(s.codonTo)) ambiguous++;
+        }
+
+        if (!same(expected, found) || !same(expected, bySite) || !same(expected, table)) {
+            if (failures < 10) {
+                System.out.printf("%s codons%s, branch %s -> %s:\n  expected %s\n  getSubstitutions %s\n" +
+                        "  getSubstitutionsBySite %s\n  findSubstitutions %s\n", data.getCodonCount(),
+                        lowerCase ? " (lower case)" : "", parent, child, expected, found, bySite, table);
+            }
+            failures++;
+        }
+    }
+
+    // The codons that differ between the sequences' text, in order of site
+    private static List<Substitution> compareText(String child, String parent) {
+        List<Substitution> found = Lists.newArrayList();
+        for (int i = 0; i < child.length(); i += Constants.CODON_LENGTH) {
+            String from = parent.substring(i, i + Constants.CODON_LENGTH);
+            String to = child.substring(i, i + Constants.CODON_LENGTH);
+            if (!from.equals(to)) {
+                found.add(new Substitution(i / Constants.CODON_LENGTH + 1, from, to, getAminoAcid(from), getAminoAcid(to)));
+            }
+        }
+        return found;
+    }
+
+    private static char getAminoAcid(String tla) {
+        return Utils.getAminoAcidChar(Utils.getCodonIndex(tla.charAt(0), tla.charAt(1), tla.charAt(2)));
+    }
+
+    private static boolean isAmbiguous(String tla) {
+        for (int i = 0; i < tla.length(); i++) {
+            if (UNAMBIGUOUS.indexOf(tla.charAt(i)) == -1) return true;
+        }
+        return false;
+    }
+
+    // Substitution.equals compares the site and codons; toString adds the amino acids
+    private static boolean same(List<Substitution> a, List<Substitution> b) {
+        return a.equals(b) && a.toString().equals(b.toString());
+    }
+}
@@ -0,0 +1,282 @@
+package treesub.bench;
+
+import treesub.Constants;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Writes synthetic inputs for the benchmarks: a PAML 'rst' file (with alignment.names) and a FASTA
+ * 'alignment', for a random tree with a given number of taxa and codons. Sequences evolve down the tree
+ * with a small chance of a substitution at each codon and of an ambiguous nucleotide, which is roughly
+ * what we see in real influenza reconstructions. The same seed always gives the same files.
+ *
+ * Usage: java treesub.bench.SyntheticData directory taxa codons [seed]
+ */
+public class SyntheticData {
+    private static final String NUCLEOTIDES = "TCAG";
+    private static final String AMBIGUOUS = "NRYWSKM-";
+    private static final double SUBSTITUTION_RATE = 0.01;
+    private static final double AMBIGUITY_RATE = 0.001;
+
+    private final Random random;
+    private final int taxa;
+    private final int codons;
+
+    // The tree, as parent and children of each node. Nodes 0..taxa-1 are tips, taxa is the root.
+    private final int[] parent;
+    private final List<List<Integer>> children = new ArrayList<List<Integer>>();
+    private final double[] branchLength;
+    private final String[] sequences;
+    private boolean lowerCase = false;
+
+    public SyntheticData(int taxa, int codons, long seed) {
+        if (taxa < 3) throw new IllegalArgumentException("Need at least 3 taxa");
+
+        this.random = new Random(seed);
+        this.taxa = taxa;
+        this.codons = codons;
+
+        // Root is trifurcating (as in PAML's rst), so there are taxa - 2 internal nodes
+        int nodes = 2 * taxa - 2;
+        this.parent = new int[nodes];
+        this.branchLength = new double[nodes];
+        this.sequences = new String[nodes];
+        for (int i = 0; i < nodes; i++) children.add(new ArrayList<Integer>());
+
+        buildTree();
+        evolve();
+    }
+
+    /**
+     * @param size the number of taxa and codons, written as "taxa x codons", e.g. "100x1000"
+     */
+    public static SyntheticData ofSize(String size, long seed) {
+        String[] parts = size.split("x");
+        return new SyntheticData(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), seed);
+    }
+
+    /**
+     * Creates an empty temporary directory for benchmark input and output
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Could not create temporary directory " + dir);
+        return dir;
+    }
+
+    public static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Writes the sequences in lower case, as some tools do
+     */
+    public void setLowerCase(boolean lowerCase) {
+        this.lowerCase = lowerCase;
+    }
+
+    /**
+     * @param key the key ParseRST gives the sequence: "seq_n" for a tip, or "node#n" for an internal node
+     * @return the sequence as it is written to 'rst'
+     */
+    public String getSequence(String key) {
+        int number = Integer.parseInt(key.substring(key.startsWith("seq_") ? 4 : 5));
+        return write(sequences[number - 1]);
+    }
+
+    public int getCodonCount() {
+        return codons;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        SyntheticData data = new SyntheticData(Integer.parseInt(args[1]), Integer.parseInt(args[2]), seed);
+        File dir = new File(args[0]);
+        data.writeRST(dir);
+        data.writeFASTA(dir);
+    }
+
+    /**
+     * Writes 'rst' and 'alignment.names' to the directory
+     */
+    public void writeRST(File dir) throws IOException {
+        dir.mkdirs();
+        Writer out = new BufferedWriter(new FileWriter(new File(dir, Constants.PAML_RECONSTRUCTION_FILE)));
+
+        out.write("\nSupplemental results for BASEML (seqf: alignment.paml.phylip  treef: RAxML_bestTree.RECON.rooted)\n\n");
+        out.write("Ancestral reconstruction by BASEML.\n\n");
+        out.write(newick(true, false) + ";\n\n");
+        out.write(newick(false, false) + ";\n\n");
+        out.write(String.format("Nodes %s to %s are ancestral\n\n", taxa + 1, 2 * taxa - 2));
+        out.write(newick(false, true) + ";\n\n");
+        out.write("tree with node labels for Rod Page's TreeView\n");
+        out.write(newick(false, true) + ";\n\n");
+
+        out.write("List of extant and reconstructed sequences\n\n");
+        out.write(String.format("%6d %6d\n\n", sequences.length, codons * Constants.CODON_LENGTH));
+        for (int i = 0; i < sequences.length; i++) {
+            String key = i < taxa ? tipName(i) : "node #" + pamlNumber(i);
+            out.write(String.format("%-20s ", key));
+            String sequence = write(sequences[i]);
+            for (int j = 0; j < codons; j++) {
+                if (j > 0) out.write(' ');
+                out.write(sequence, j * Constants.CODON_LENGTH, Constants.CODON_LENGTH);
+            }
+            out.write('\n');
+        }
+
+        out.write(String.format("\nOverall accuracy of the %s ancestral sequences:\n", taxa - 2));
+        out.close();
+
+        out = new BufferedWriter(new FileWriter(new File(dir, Constants.ALIGNMENT_NAMES)));
+        for (int i = 0; i < taxa; i++) out.write("A/Synthetic/" + (i + 1) + "/2011\n");
+        out.close();
+    }
+
+    /**
+     * Writes the tip sequences to 'alignment' in the directory, 60 nucleotides per line
+     */
+    public void writeFASTA(File dir) throws IOException {
+        dir.mkdirs();
+        Writer out = new BufferedWriter(new FileWriter(new File(dir, "alignment")));
+        for (int i = 0; i < taxa; i++) {
+            out.write(">A/Synthetic/" + (i + 1) + "/2011\n");
+            String sequence = write(sequences[i]);
+            for (int j = 0; j < sequence.length(); j += 60) {
+                out.write(sequence, j, Math.min(60, sequence.length() - j));
+                out.write('\n');
+            }
+        }
+        out.close();
+    }
+
+    private String write(String sequence) {
+        return lowerCase ? sequence.toLowerCase(Locale.US) : sequence;
+    }
+
+    private void buildTree() {
+        // Join random pairs of subtrees until three are left, which become the children of the root
+        List<Integer> pool = new ArrayList<Integer>();
+        for (int i = 0; i < taxa; i++) pool.add(i);
+
+        int next = taxa + 1;
+        while (pool.size() > 3) {
+            int a = pool.remove(random.nextInt(pool.size()));
+            int b = pool.remove(random.nextInt(pool.size()));
+            int node = next++;
+            join(node, a);
+            join(node, b);
+            pool.add(node);
+        }
+        for (int child : pool) join(taxa, child);
+        parent[taxa] = -1;
+    }
+
+    private void join(int node, int child) {
+        parent[child] = node;
+        children.get(node).add(child);
+        branchLength[child] = random.nextDouble() * 0.1;
+    }
+
+    private void evolve() {
+        StringBuilder root = new StringBuilder();
+        for (int i = 0; i < codons; i++) root.append(randomCodon());
+        sequences[taxa] = root.toString();
+
+        // Parents always come before their children in pre-order
+        List<Integer> stack = new ArrayList<Integer>();
+        stack.add(taxa);
+        while (!stack.isEmpty()) {
+            int node = stack.remove(stack.size() - 1);
+            for (int child : children.get(node)) {
+                sequences[child] = mutate(sequences[node]);
+                stack.add(child);
+            }
+        }
+    }
+
+    private String mutate(String sequence) {
+        StringBuilder sb = new StringBuilder(sequence);
+        for (int i = 0; i < codons; i++) {
+            if (random.nextDouble() < SUBSTITUTION_RATE) {
+                sb.replace(i * 3, i * 3 + 3, randomCodon());
+            }
+            if (random.nextDouble() < AMBIGUITY_RATE) {
+                sb.setCharAt(i * 3 + random.nextInt(3), AMBIGUOUS.charAt(random.nextInt(AMBIGUOUS.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private String randomCodon() {
+        while (true) {
+            String codon = "" + NUCLEOTIDES.charAt(random.nextInt(4)) + NUCLEOTIDES.charAt(random.nextInt(4)) + NUCLEOTIDES.charAt(random.nextInt(4));
+            if (!codon.equals("TAA") && !codon.equals("TAG") && !codon.equals("TGA")) return codon;
+        }
+    }
+
+    private String tipName(int tip) {
+        return "seq_" + (tip + 1);
+    }
+
+    // PAML numbers the tips from 1 and the internal nodes after them, starting with the root
+    private int pamlNumber(int node) {
+        return node + 1;
+    }
+
+    /**
+     * Writes the tree in the formats found in 'rst': with branch lengths, plain, or with PAML node labels
+     */
+    private String newick(boolean lengths, boolean labels) {
+        StringBuilder sb = new StringBuilder();
+        newick(sb, taxa, lengths, labels);
+        return sb.toString();
+    }
+
+    private void newick(StringBuilder sb, int node, boolean lengths, boolean labels) {
+        // Iterative, so deep trees don't overflow the stack. Each entry is a node, or -1 - node to close it.
+        List<Integer> stack = new ArrayList<Integer>();
+        stack.add(node);
+        boolean first = true;
+
+        while (!stack.isEmpty()) {
+            int n = stack.remove(stack.size() - 1);
+
+            if (n < 0) {
+                n = -1 - n;
+                sb.append(')');
+                if (labels) sb.append(' ').append(pamlNumber(n)).append(' ');
+                if (lengths && parent[n] != -1) sb.append(String.format(Locale.US, ": %.6f", branchLength[n]));
+                continue;
+            }
+
+            if (!first && sb.charAt(sb.length() - 1) != '(') sb.append(", ");
+            first = false;
+
+            if (n < taxa) {
+                if (labels) sb.append(n + 1).append('_');
+                sb.append(tipName(n));
+                if (lengths) sb.append(String.format(Locale.US, ": %.6f", branchLength[n]));
+            } else {
+                sb.append('(');
+                stack.add(-1 - n);
+                List<Integer> kids = children.get(n);
+                for (int i = kids.size() - 1; i >= 0; i--) stack.add(kids.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package treesub;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * A Writer for large text output files. Characters are copied straight into one large reusable buffer,
+ * which is written to a FileChannel when it fills, and numbers can be written without first turning them
+ * into Strings. ASCII is written byte for byte; anything else goes through the default charset, so the
+ * files are the same as those written by a FileWriter.
+ */
+public class ChannelWriter extends Writer {
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Scratch space for the digits of an int, written backwards
+    private final byte[] digits = new byte[11];
+
+    public ChannelWriter(String filename) throws IOException {
+        this(filename, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelWriter(String filename, int bufferSize) throws IOException {
+        this.out = new FileOutputStream(filename);
+        this.channel = out.getChannel();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (c < 0x80) {
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) c);
+        } else {
+            encode(CharBuffer.wrap(new char[]{(char) c}));
+        }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        writeChars(CharBuffer.wrap(chars), offset, offset + length);
+    }
+
+    @Override
+    public void write(String s, int offset, int length) throws IOException {
+        writeChars(s, offset, offset + length);
+    }
+
+    @Override
+    public ChannelWriter append(CharSequence s) throws IOException {
+        if (s == null) s = "null";
+        writeChars(s, 0, s.length());
+        return this;
+    }
+
+    @Override
+    public ChannelWriter append(CharSequence s, int start, int end) throws IOException {
+        if (s == null) s = "null";
+        writeChars(s, start, end);
+        return this;
+    }
+
+    @Override
+    public ChannelWriter append(char c) throws IOException {
+        write(c);
+        return this;
+    }
+
+    /**
+     * Writes the decimal representation of i, as String.valueOf(i) would, without creating a String.
+     */
+    public ChannelWriter writeInt(int i) throws IOException {
+        if (i == Integer.MIN_VALUE) {
+            write(String.valueOf(i));
+            return this;
+        }
+
+        if (i < 0) {
+            write('-');
+            i = -i;
+        }
+
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + i % 10);
+            i /= 10;
+        } while (i > 0);
+
+        if (buffer.remaining() < n) drain();
+        while (n > 0) buffer.put(digits[--n]);
+
+        return this;
+    }
+
+    private void writeChars(CharSequence s, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII - let the encoder handle the rest of the string
+                encode(CharBuffer.wrap(s, i, end));
+                return;
+            }
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) c);
+        }
+    }
+
+    private void encode(CharBuffer chars) throws IOException {
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) drain();
+        while (encoder.flush(buffer).isOverflow()) drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+            out.close();
+        }
+    }
+}
@@ -18,4 +18,6 @@ public class Constants {
     public static final List<String> FILES_TO_CHECK = Lists.newArrayList("alignment", ALIGNMENT_NAMES, "alignment.raxml.phylip",
             "alignment.paml.phylip", "RAxML_bestTree.RECON", "RAxML_bestTree.RECON.rooted", "pamlout", PAML_RECONSTRUCTION_FILE);
     public static final String OUTGROUP_SEQUENCE_NAME = "seq_1";
+    public static final String STAGE_CACHE_FILE = "treesub.stages";
+    public static final String RUN_REPORT_FILE = "run_report.json";
 }
@@ -1,6 +1,7 @@
 package treesub;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -8,6 +9,7 @@ import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.primitives.Chars;
 import org.biojava3.core.sequence.template.AbstractSequence;
+import pal.datatype.CodonTable;
 import pal.datatype.CodonTableFactory;
 import pal.datatype.Codons;
 import pal.io.FormattedOutput;
@@ -17,7 +19,8 @@ import treesub.tree.Attributes;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -36,49 +39,31 @@ public class Utils {
      * @return A Set of all amino acid characters that are coded by this nucleotide triplet
      */
     public static Set<Character> getAminoAcidsForCodonTLA(String tla) {
-        // If we don't have any ambiguous nucleotides in our triplet
-        if (!containsAmbiguousNucleotide(tla)) {
-            // Just a straightforward lookup
-            int codonIndex = Codons.getCodonIndexFromNucleotides(tla.toCharArray());
-            char aaChar = CodonTableFactory.createUniversalTranslator().getAminoAcidCharFromCodonIndex(codonIndex);
-            return Sets.newHashSet(aaChar);
-        }
-
-        // We're still here if we found ambiguous nucleotides in the triplet
-        // First, get all the possible nucleotides at each of the three positions (i.e. resolve the ambiguous nucleotides)
-        List<List<Character>> positions = Lists.newArrayList();
-        positions.add(null);
-        positions.add(null);
-        positions.add(null);
-
-        for (int i = 0; i < 3; i++) {
-            char c = tla.charAt(i);
-            if (IUPAC_ALL_AMBIGUOUS.contains(c)) {
-                positions.set(i, IUPAC_AMBIGUOUS_LOOKUP.get(c));
-            } else {
-                positions.set(i, Chars.asList(c));
-            }
-        }
+        int codonIndex = getCodonIndex(tla.charAt(0), tla.charAt(1), tla.charAt(2));
+        if (codonIndex == -1) throw new IllegalArgumentException("Unknown codon '" + tla + "'");
 
-        // Now build a list of all the possible codons from all possible nucleotides at the three positions
-        List<String> allPossibleCodons = Lists.newArrayList();
-        for (int i = 0; i < positions.get(0).size(); i++) {
-            for (int j = 0; j < positions.get(1).size(); j++) {
-                for (int k = 0; k < positions.get(2).size(); k++) {
-                    String s = String.valueOf(new char[]{positions.get(0).get(i), positions.get(1).get(j), positions.get(2).get(k)});
-                    allPossibleCodons.add(s);
-                }
-            }
+        Set<Character> aminoAcids = Sets.newHashSet();
+        int mask = getAminoAcidMask(codonIndex);
+        for (int i = 0; i < AMINO_ACIDS.length(); i++) {
+            if ((mask & (1 << i)) != 0) aminoAcids.add(AMINO_ACIDS.charAt(i));
         }
+        return aminoAcids;
+    }
 
-        // Iterate through all possible codons and collect the amino acid for each
-        Set<Character> allAminoAcids = Sets.newHashSet();
-        for (String c : allPossibleCodons) {
-            // We should only ever have one amino acid in this case (i.e. the ambiguities have been resolved)
-            allAminoAcids.add(getAminoAcidsForCodonTLA(c).iterator().next());
-        }
+    /**
+     * Returns the amino acids coded by a codon (see getCodonIndex) as a bitmask, where bit i is set if
+     * the codon can code for the amino acid AMINO_ACIDS.charAt(i). Does not allocate.
+     */
+    public static int getAminoAcidMask(int codonIndex) {
+        return AMINO_ACID_MASKS[codonIndex];
+    }
 
-        return allAminoAcids;
+    /**
+     * Returns the amino acid coded by a codon (see getCodonIndex), or '*' if the codon is ambiguous and
+     * could code for more than one amino acid. Does not allocate.
+     */
+    public static char getAminoAcidChar(int codonIndex) {
+        return AMINO_ACID_CHARS[codonIndex];
     }
 
     public static boolean containsAmbiguousNucleotide(String tla) {
@@ -95,35 +80,84 @@ public class Utils {
         return isAmbiguous;
     }
 
-    // Lifted from PAL source code, so we can output NEXUS style trees with annotations (for Figtree)
-    public static void printNH(PrintWriter out, Node node, Map<Node, Attributes> nodeAttributes) {
-        if (!node.isLeaf()) {
-            out.print("(");
+    /**
+     * Packs a nucleotide triplet into a codon index, so sequences can be held as primitive arrays instead
+     * of one String per codon. Each nucleotide takes 5 bits, so every index is in [0, CODON_INDEX_COUNT).
+     *
+     * @return the codon index, or -1 if any of the nucleotides is not a known (IUPAC or gap) character
+     */
+    public static int getCodonIndex(char first, char second, char third) {
+        int a = getSymbolIndex(first), b = getSymbolIndex(second), c = getSymbolIndex(third);
+        if ((a | b | c) < 0) return -1;
+        return (a << (2 * SYMBOL_BITS)) | (b << SYMBOL_BITS) | c;
+    }
 
-            for (int i = 0; i < node.getChildCount(); i++) {
-                if (i != 0) {
-                    out.print(",");
-                }
+    /**
+     * The reverse of getCodonIndex. The same String instance is returned for every call with the same index.
+     */
+    public static String getCodonTLA(int codonIndex) {
+        String tla = CODON_TLA_CACHE[codonIndex];
+        if (tla == null) {
+            int mask = (1 << SYMBOL_BITS) - 1;
+            tla = String.valueOf(new char[]{
+                    CODON_SYMBOLS.charAt((codonIndex >> (2 * SYMBOL_BITS)) & mask),
+                    CODON_SYMBOLS.charAt((codonIndex >> SYMBOL_BITS) & mask),
+                    CODON_SYMBOLS.charAt(codonIndex & mask)});
+            // Racing threads can only store equal Strings here, so no locking is needed
+            CODON_TLA_CACHE[codonIndex] = tla;
+        }
+        return tla;
+    }
+
+    private static int getSymbolIndex(char c) {
+        return c < SYMBOL_INDEX.length ? SYMBOL_INDEX[c] : -1;
+    }
+
+    // Lifted from PAL source code, so we can output NEXUS style trees with annotations (for Figtree).
+    // Uses an explicit stack rather than recursion, so very deep trees don't overflow the call stack.
+    public static void printNH(Writer out, Node root, Function<Node, Attributes> nodeAttributes) throws IOException {
+        // The nodes on the path from the root, and for each the index of the next child to print
+        List<Node> stack = Lists.newArrayList();
+        int[] nextChild = new int[64];
+
+        stack.add(root);
+
+        while (!stack.isEmpty()) {
+            int top = stack.size() - 1;
+            Node node = stack.get(top);
+            int i = nextChild[top];
 
-                printNH(out, node.getChild(i), nodeAttributes);
+            if (i < node.getChildCount()) {
+                out.write(i == 0 ? '(' : ',');
+                nextChild[top] = i + 1;
+
+                if (stack.size() == nextChild.length) nextChild = Arrays.copyOf(nextChild, nextChild.length * 2);
+                nextChild[stack.size()] = 0;
+                stack.add(node.getChild(i));
+                continue;
             }
 
-            out.print(")");
-        }
+            // All the children of this node have been printed
+            if (!node.isLeaf()) {
+                out.write(')');
+            }
 
-        if (!node.isRoot()) {
-            if (node.isLeaf()) {
-                // String id = node.getIdentifier().toString();
-                String id = nodeAttributes.get(node).get(Attributes.Key.REALNAME);
-                out.print("'" + id + "'");
-            } else {
-                if (nodeAttributes.get(node).size() > 0) {
-                    out.print(nodeAttributes.get(node).toString());
+            if (!node.isRoot()) {
+                if (node.isLeaf()) {
+                    // String id = node.getIdentifier().toString();
+                    String id = nodeAttributes.apply(node).get(Attributes.Key.REALNAME);
+                    out.write('\'');
+                    out.write(id);
+                    out.write('\'');
+                } else {
+                    nodeAttributes.apply(node).appendTo(out);
                 }
+
+                out.write(':');
+                out.write(FormattedOutput.getInstance().getDecimalString(node.getBranchLength(), 7));
             }
 
-            out.print(":");
-            FormattedOutput.getInstance().displayDecimal(out, node.getBranchLength(), 7);
+            stack.remove(top);
         }
     }
 
@@ -144,4 +178,56 @@ public class Utils {
 
     private static final Set<Character> IUPAC_ALL_AMBIGUOUS = IUPAC_AMBIGUOUS_LOOKUP.keySet();
 
+    // All the characters we accept in a codon, upper- and lower-case IUPAC nucleotides plus gap and missing
+    private static final String CODON_SYMBOLS = "TCAGNRWYMKSHBVD-tcagnrwymkshbvd?";
+    private static final int SYMBOL_BITS = 5;
+    public static final int CODON_INDEX_COUNT = 1 << (3 * SYMBOL_BITS);
+
+    private static final byte[] SYMBOL_INDEX = new byte[128];
+    private static final String[] CODON_TLA_CACHE = new String[CODON_INDEX_COUNT];
+
+    static {
+        Arrays.fill(SYMBOL_INDEX, (byte) -1);
+        for (int i = 0; i < CODON_SYMBOLS.length(); i++) SYMBOL_INDEX[CODON_SYMBOLS.charAt(i)] = (byte) i;
+    }
+
+    // Amino acids in the order of the bits returned by getAminoAcidMask ('*' is a stop codon)
+    public static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY*";
+
+    private static final int[] AMINO_ACID_MASKS = new int[CODON_INDEX_COUNT];
+    private static final char[] AMINO_ACID_CHARS = new char[CODON_INDEX_COUNT];
+
+    // Translate every possible triplet of CODON_SYMBOLS once, resolving ambiguous nucleotides to all the
+    // nucleotides they could be and collecting the amino acids of the resulting (unambiguous) codons
+    static {
+        CodonTable translator = CodonTableFactory.createUniversalTranslator();
+
+        for (char first : CODON_SYMBOLS.toCharArray()) {
+            for (char second : CODON_SYMBOLS.toCharArray()) {
+                for (char third : CODON_SYMBOLS.toCharArray()) {
+                    int mask = 0;
+                    for (char i : getNucleotides(first)) {
+                        for (char j : getNucleotides(second)) {
+                            for (char k : getNucleotides(third)) {
+                                int codonIndex = Codons.getCodonIndexFromNucleotides(new char[]{i, j, k});
+                                mask |= 1 << AMINO_ACIDS.indexOf(translator.getAminoAcidCharFromCodonIndex(codonIndex));
+                            }
+                        }
+                    }
+
+                    int codonIndex = getCodonIndex(first, second, third);
+                    AMINO_ACID_MASKS[codonIndex] = mask;
+                    AMINO_ACID_CHARS[codonIndex] = Integer.bitCount(mask) > 1 ? '*' : AMINO_ACIDS.charAt(Integer.numberOfTrailingZeros(mask));
+                }
+            }
+        }
+    }
+
+    private static List<Character> getNucleotides(char c) {
+        c = Character.toUpperCase(c);
+        if (IUPAC_ALL_AMBIGUOUS.contains(c)) return IUPAC_AMBIGUOUS_LOOKUP.get(c);
+        if (c == '?') return IUPAC_AMBIGUOUS_LOOKUP.get('N');
+        return Chars.asList(c);
+    }
+
 }
@@ -1,15 +1,20 @@
 package treesub.alignment;
 
+import com.google.common.collect.Maps;
 import org.biojava3.core.sequence.DNASequence;
 import org.biojava3.core.sequence.compound.AmbiguityDNACompoundSet;
 import org.biojava3.core.sequence.compound.NucleotideCompound;
-import org.biojava3.core.sequence.io.DNASequenceCreator;
-import org.biojava3.core.sequence.io.FastaReader;
 import org.biojava3.core.sequence.io.GenericFastaHeaderParser;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -20,63 +25,144 @@ import java.util.Map;
  *     file.phylip - this is a PHYLIP format alignment from the FASTA file, with the sequence names
  *                   renamed to seq_1, seq_2, seq_3...seq_n. This is to reduce the possibility of
  *                   label errors being thrown by RaXML and PAML.
+ *
+ * With OUTPUT.ALL, the RAxML and PAML PHYLIP files are both written from a single pass over the FASTA file.
+ * Sequences are streamed through rather than held in memory: FASTAReader copies them, validated and
+ * upper-cased, from the memory-mapped FASTA file to a temporary file, and each PHYLIP file is then its
+ * header followed by channel copies of those sequences. BioJava is only used to parse the header lines.
  */
 public class FASTAConverter {
+    // Sequence names are the accession that BioJava's FASTA header parser finds in the '>' line
+    private final GenericFastaHeaderParser<DNASequence, NucleotideCompound> headerParser = new GenericFastaHeaderParser<DNASequence, NucleotideCompound>();
+    private final DNASequence headerSequence = new DNASequence("", AmbiguityDNACompoundSet.getDNACompoundSet());
+
+    // Where the sequence of each FASTA record starts in the temporary file, and its length
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int recordCount;
+
+    // The record to use for each name, in the order the names first appear. As with BioJava's FastaReader, a
+    // later record with the same name replaces the earlier one, but keeps its place in the alignment
+    private final Map<String, Integer> records = Maps.newLinkedHashMap();
+
     public String run(String dir, OUTPUT output) throws Exception {
+        return run(dir, null, output);
+    }
+
+    /**
+     * @param source if not null, the FASTA file to convert, which is copied to 'alignment' (with native line
+     *               endings) as it is read. Otherwise 'alignment' itself is converted.
+     */
+    public String run(String dir, File source, OUTPUT output) throws Exception {
         String filename = dir + "/alignment";
+        File rows = new File(filename + ".phylip.tmp");
+
+        recordCount = 0;
+        records.clear();
 
-        FastaReader<DNASequence, NucleotideCompound> fastaReader =
-                new FastaReader<DNASequence, NucleotideCompound>(new File(filename),
-                        new GenericFastaHeaderParser<DNASequence, NucleotideCompound>(),
-                        new DNASequenceCreator(AmbiguityDNACompoundSet.getDNACompoundSet()));
+        FASTAReader reader;
+        LineEndingCopier copier = null;
+        if (source == null) {
+            reader = new FASTAReader(filename);
+        } else {
+            reader = new FASTAReader(source.getPath());
+            copier = new LineEndingCopier(source, new File(filename));
+            reader.setCopier(copier);
+        }
 
-        // fastaReader.process returns LinkedHashMap, so order of sequences is preserved
-        Map<String, DNASequence> fasta = fastaReader.process();
+        final FileChannel rows_out = new FileOutputStream(rows).getChannel();
+        boolean converted = false;
+        try {
+            reader.read(new FASTAReader.Handler() {
+                long offset = 0;
+
+                public void header(String header) {
+                    headerParser.parseHeader(header, headerSequence);
+                    records.put(headerSequence.getAccession().getID(), recordCount); // keeps the position of the first record with this name
+
+                    if (recordCount == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, recordCount * 2);
+                        lengths = Arrays.copyOf(lengths, recordCount * 2);
+                    }
+                    offsets[recordCount] = offset;
+                    lengths[recordCount] = 0;
+                    recordCount++;
+                }
+
+                public void sequence(ByteBuffer bytes) throws IOException {
+                    int length = bytes.remaining();
+                    while (bytes.hasRemaining()) rows_out.write(bytes);
+                    lengths[recordCount - 1] += length;
+                    offset += length;
+                }
+            });
+            converted = true;
+        } finally {
+            rows_out.close();
+            if (copier != null) copier.finish();
+            if (!converted) {
+                rows.delete();
+                // Still leave a complete copy of the alignment, so the user can see what is wrong with it
+                if (copier != null) LineEndingCopier.copy(source, new File(filename));
+            }
+        }
+
+        if (records.isEmpty()) {
+            rows.delete();
+            throw new IOException(String.format("No sequences found in '%s'.", filename));
+        }
+
+        int length = lengths[records.values().iterator().next()];
+        if (length == 0) {
+            rows.delete();
+            throw new IOException(String.format("No sites found in the sequences of '%s'.", filename));
+        }
 
         // Write out the names of the sequences - we rename them to reroot sequence through RaXML and PAML
         BufferedWriter names_out = new BufferedWriter(new FileWriter(filename + ".names"));
-        for (Map.Entry<String, DNASequence> e : fasta.entrySet()) names_out.write(String.format("%s\n", e.getKey()));
+        for (String name : records.keySet()) names_out.write(String.format("%s\n", name));
         names_out.close();
 
         // Output a PHYLIP file, which is the accepted format for both RAxML and PAML
         // However, the PAML file, for baseml requires a 'GC' in the header which makes RAxML error
-
-
-
-        String outfilename;
-        String header = fasta.size() + " " + fasta.values().iterator().next().getLength();
-        if (output == OUTPUT.PAML) {
-            outfilename = filename + ".paml.phylip";
-            header = header + " GC";
-        } else {
-            outfilename = filename + ".raxml.phylip";
+        String header = records.size() + " " + length;
+        try {
+            if (output != OUTPUT.PAML) writePhylip(filename + ".raxml.phylip", header, rows);
+            if (output != OUTPUT.RAXML) writePhylip(filename + ".paml.phylip", header + " GC", rows);
+        } finally {
+            rows.delete();
         }
 
-        try {
-        BufferedWriter phylip_out = new BufferedWriter(new FileWriter(outfilename));
-        phylip_out.write(header + "\n");
-        int sequenceCount = 1;
+        return String.format("Alignment has %s sequences, each with %s sites.", records.size(), length);
+    }
 
-            for (Map.Entry<String, DNASequence> e : fasta.entrySet()) {
-                phylip_out.write(String.format("seq_%s    %s\n", sequenceCount++, e.getValue().getSequenceAsString().toUpperCase()));
+    private void writePhylip(String filename, String header, File rows) throws IOException {
+        FileChannel out = new FileOutputStream(filename).getChannel();
+        FileChannel in = new FileInputStream(rows).getChannel();
+        try {
+            // Header and sequence labels are plain ASCII
+            StringBuilder text = new StringBuilder(header);
+
+            int sequenceCount = 1;
+            for (int record : records.values()) {
+                text.append(String.format("\nseq_%s    ", sequenceCount++));
+                out.write(ByteBuffer.wrap(text.toString().getBytes("US-ASCII")));
+                text.setLength(0);
+
+                long position = offsets[record], end = position + lengths[record];
+                while (position < end) {
+                    position += in.transferTo(position, end - position, out);
+                }
             }
-
-            /*
-            for (String name : fasta.keySet()) {
-                phylip_out.write(String.format("seq_%s    %s\n", sequenceCount++, fasta.get(name).toString().toUpperCase()));
-            }*/
-
-
-        phylip_out.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            out.write(ByteBuffer.wrap(new byte[]{'\n'}));
+        } finally {
+            in.close();
+            out.close();
         }
-        return String.format("Alignment has %s sequences, each with %s sites.", fasta.size(), fasta.values().iterator().next().getLength());
     }
 
     public static enum OUTPUT {
-        RAXML, PAML
+        RAXML, PAML, ALL
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,168 @@
+package treesub.alignment;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Reads a FASTA file of nucleotide sequences straight from a memory-mapped file, without building
+ * sequence objects or Strings for the sequences. The file is scanned one byte at a time: sequence bytes
+ * are checked against the IUPAC nucleotide codes (and gap), upper-cased and copied into a direct buffer,
+ * which is handed to the Handler each time it fills and at the end of every record. Only the '>' header
+ * lines are decoded, using the default charset.
+ *
+ * As with BioJava's FastaReader, lines are trimmed, and blank lines and ';' comment lines are skipped.
+ * Lines may end with '\r', '\n' or "\r\n" (as LineEndingCopier accepts), since this may be the user's own file.
+ */
+public class FASTAReader {
+    // IUPAC nucleotide codes (and gap) accepted in the alignment, in either case
+    private static final String ALLOWED = "ACGTNRYKMSWBDHV-";
+
+    // Upper-case code for every accepted byte, 0 for anything else
+    private static final byte[] UPPER_CASE = new byte[256];
+    static {
+        for (char c : ALLOWED.toCharArray()) {
+            UPPER_CASE[c] = (byte) c;
+            UPPER_CASE[Character.toLowerCase(c)] = (byte) c;
+        }
+    }
+
+    // Map the file in windows of this size, so files larger than 2GB can be read
+    private static final long MAP_SIZE = 1 << 28;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int LINE_START = 0, HEADER = 1, COMMENT = 2, SEQUENCE = 3, TRAILING_SPACE = 4;
+
+    private final String file;
+    private LineEndingCopier copier;
+
+    public FASTAReader(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Copy the file as it is read, so the file is only read once. The copier is not finished by read().
+     */
+    public void setCopier(LineEndingCopier copier) {
+        this.copier = copier;
+    }
+
+    public interface Handler {
+        /**
+         * Called at the start of each record
+         *
+         * @param header the '>' line, without the '>' and trimmed
+         */
+        void header(String header) throws IOException;
+
+        /**
+         * Called with the next part of the sequence of the current record
+         *
+         * @param bytes upper-case nucleotide codes, between the buffer's position and limit. The same buffer
+         *              is reused for each call, so consume or copy the bytes before returning.
+         */
+        void sequence(ByteBuffer bytes) throws IOException;
+    }
+
+    public void read(Handler handler) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        FileChannel channel = in.getChannel();
+
+        try {
+            ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            byte[] header = new byte[256];
+            int headerLength = 0;
+
+            int state = LINE_START;
+            int records = 0;
+            long line = 1;
+            boolean afterCR = false; // so the '\n' of a "\r\n" doesn't end another line
+
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                if (copier != null) copier.write(map.duplicate());
+
+                while (map.hasRemaining()) {
+                    byte b = map.get();
+
+                    if (b == '\r' || b == '\n') {
+                        boolean endsLine = b == '\r' || !afterCR;
+                        afterCR = b == '\r';
+                        if (!endsLine) continue;
+                        if (state == HEADER) {
+                            if (records > 0) flush(out, handler);
+                            handler.header(new String(header, 0, headerLength).trim());
+                            records++;
+                        }
+                        state = LINE_START;
+                        line++;
+                        continue;
+                    }
+                    afterCR = false;
+
+                    switch (state) {
+                        case SEQUENCE:
+                            byte upper = UPPER_CASE[b & 0xff];
+                            if (upper != 0) {
+                                if (!out.hasRemaining()) flush(out, handler);
+                                out.put(upper);
+                            } else if ((b & 0xff) <= ' ') {
+                                state = TRAILING_SPACE;
+                            } else {
+                                throw unexpected(b, line);
+                            }
+                            break;
+                        case HEADER:
+                            if (headerLength == header.length) header = Arrays.copyOf(header, headerLength * 2);
+                            header[headerLength++] = b;
+                            break;
+                        case LINE_START:
+                            if (b == '>') {
+                                state = HEADER;
+                                headerLength = 0;
+                            } else if (b == ';') {
+                                state = COMMENT;
+                            } else if ((b & 0xff) > ' ') {
+                                if (records == 0) throw new IOException(String.format("Alignment does not start with a FASTA '>' header line (line %s).", line));
+                                state = SEQUENCE;
+                                map.position(map.position() - 1); // read it again as sequence
+                            }
+                            break;
+                        case TRAILING_SPACE:
+                            if ((b & 0xff) > ' ') throw unexpected((byte) ' ', line);
+                            break;
+                        case COMMENT:
+                            break;
+                    }
+                }
+            }
+
+            // The last line of the file may not end with a newline
+            if (state == HEADER) {
+                if (records > 0) flush(out, handler);
+                handler.header(new String(header, 0, headerLength).trim());
+                records++;
+            }
+            if (records > 0) flush(out, handler);
+        } finally {
+            channel.close();
+            in.close();
+        }
+    }
+
+    private static void flush(ByteBuffer out, Handler handler) throws IOException {
+        out.flip();
+        if (out.hasRemaining()) handler.sequence(out);
+        out.clear();
+    }
+
+    private static IllegalArgumentException unexpected(byte b, long line) {
+        return new IllegalArgumentException(String.format("Unexpected character '%s' on line %s of the alignment.", (char) (b & 0xff), line));
+    }
+}
@@ -0,0 +1,177 @@
+package treesub.alignment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Copies a text file, converting its line endings ("\n", "\r\n" or "\r") to the native line separator and
+ * making sure the last line ends with one. The copy is done on bytes, without decoding to characters.
+ *
+ * The source is passed in as it is read, so the copy can be made while the same bytes are being read for
+ * something else (see FASTAReader.setCopier). Nothing is written until the first line ending that is not
+ * native: up to there the target is a straight channel copy of the source, and if the whole file already
+ * has native line endings the target is copied with FileChannel.transferTo, without going through our
+ * buffers at all.
+ */
+public class LineEndingCopier {
+    private static final byte[] NATIVE = System.getProperty("line.separator").getBytes();
+
+    // Line endings as bits: 1 for '\r', 2 for '\n'
+    private static final int CR = 1, LF = 2;
+    private static final int NATIVE_ENDING = (NATIVE[0] == '\r' ? CR : 0) | (NATIVE[NATIVE.length - 1] == '\n' ? LF : 0);
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileInputStream sourceStream;
+    private final FileOutputStream targetStream;
+    private final FileChannel source;
+    private final FileChannel target;
+    private ByteBuffer buffer;
+
+    // Bytes of the source seen so far, and where the last '\r' was
+    private long position = 0;
+    private long crPosition = -1;
+    private boolean pendingCR = false;
+    private boolean endOfLine = true;
+
+    // Whether we have found a line ending that is not native, and are writing converted bytes
+    private boolean converting = false;
+
+    public LineEndingCopier(File source, File target) throws IOException {
+        this.sourceStream = new FileInputStream(source);
+        this.source = sourceStream.getChannel();
+        this.targetStream = new FileOutputStream(target);
+        this.target = targetStream.getChannel();
+    }
+
+    /**
+     * Copies the source to the target, reading it through a large direct buffer
+     *
+     * @return true if any line endings were changed
+     */
+    public static boolean copy(File source, File target) throws IOException {
+        LineEndingCopier copier = new LineEndingCopier(source, target);
+        boolean converted;
+        try {
+            ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            FileChannel channel = copier.source;
+            long position = 0;
+            int n;
+            while ((n = channel.read(in, position)) != -1) {
+                position += n;
+                in.flip();
+                copier.write(in);
+                in.clear();
+            }
+        } finally {
+            converted = copier.finish();
+        }
+        return converted;
+    }
+
+    /**
+     * @param bytes the next part of the source, between the buffer's position and limit. The buffer's
+     *              position is moved to its limit.
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+
+            if (b == '\r') {
+                if (pendingCR) endLine(crPosition, CR); // a lone '\r'
+                pendingCR = true;
+                crPosition = position;
+            } else if (b == '\n') {
+                if (pendingCR) {
+                    endLine(crPosition, CR | LF);
+                    pendingCR = false;
+                } else {
+                    endLine(position, LF);
+                }
+            } else {
+                if (pendingCR) {
+                    endLine(crPosition, CR);
+                    pendingCR = false;
+                }
+                if (converting) put(b);
+                endOfLine = false;
+            }
+
+            position++;
+        }
+    }
+
+    /**
+     * Finishes the copy and closes both files
+     *
+     * @return true if any line endings were changed
+     */
+    public boolean finish() throws IOException {
+        try {
+            if (pendingCR) endLine(crPosition, CR);
+            if (!endOfLine) {
+                // Last line has no line ending
+                startConverting(position);
+                for (byte b : NATIVE) put(b);
+            }
+
+            if (converting) {
+                buffer.flip();
+                while (buffer.hasRemaining()) target.write(buffer);
+            } else {
+                transfer(position);
+            }
+        } finally {
+            source.close();
+            sourceStream.close();
+            target.close();
+            targetStream.close();
+        }
+        return converting;
+    }
+
+    /**
+     * A line ending ('\r', '\n' or both) starts at the given position of the source
+     */
+    private void endLine(long start, int ending) throws IOException {
+        endOfLine = true;
+
+        if (!converting) {
+            if (ending == NATIVE_ENDING) return;
+            startConverting(start);
+        }
+
+        for (byte b : NATIVE) put(b);
+    }
+
+    /**
+     * Everything in the source before the given position has native line endings, so copy it directly
+     */
+    private void startConverting(long end) throws IOException {
+        if (converting) return;
+        transfer(end);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        converting = true;
+    }
+
+    private void transfer(long end) throws IOException {
+        long position = 0;
+        while (position < end) {
+            position += source.transferTo(position, end - position, target);
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            while (buffer.hasRemaining()) target.write(buffer);
+            buffer.clear();
+        }
+        buffer.put(b);
+    }
+}
@@ -0,0 +1,199 @@
+package treesub.ancestral;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import treesub.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Reads the binary substitutions file written by ParseRST with the binary output option (see
+ * BinarySubstitutionWriter for the format). Rows are read one block at a time, so a file of any size can
+ * be read in a small amount of memory:
+ *
+ *   BinarySubstitutionReader r = new BinarySubstitutionReader("substitutions.bin");
+ *   while (r.next()) {
+ *       ... r.getBranch(), r.getSite(), r.getAminoAcidFrom() ...
+ *   }
+ *   r.close();
+ */
+public class BinarySubstitutionReader implements Closeable {
+    private final DataInputStream in;
+    private final int siteCount;
+    private final Map<Integer, String> branchNames = Maps.newTreeMap();
+
+    // The columns of the current block, decoded
+    private int[] branches = new int[0];
+    private int[] sites = new int[0];
+    private int[] codonsFrom = new int[0];
+    private int[] codonsTo = new int[0];
+    private byte[] aminoAcidsFrom = new byte[0];
+    private byte[] aminoAcidsTo = new byte[0];
+    private int rows = 0;
+    private int row = -1;
+    private boolean finished = false;
+
+    private byte[] block = new byte[0];
+    private int position;
+
+    public BinarySubstitutionReader(String file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+        byte[] magic = new byte[BinarySubstitutionWriter.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, BinarySubstitutionWriter.MAGIC)) {
+            in.close();
+            throw new IOException(String.format("'%s' is not a binary substitutions file.", file));
+        }
+        int version = in.readUnsignedByte();
+        if (version != BinarySubstitutionWriter.VERSION) {
+            in.close();
+            throw new IOException(String.format("'%s' is version %s of the binary substitutions format; can only read version %s.",
+                    file, version, BinarySubstitutionWriter.VERSION));
+        }
+
+        siteCount = readVarint();
+        int count = readVarint();
+        for (int i = 0; i < count; i++) {
+            int branch = readVarint();
+            byte[] name = new byte[readVarint()];
+            in.readFully(name);
+            branchNames.put(branch, new String(name, Charsets.UTF_8));
+        }
+    }
+
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * @return the name of every branch (REALNAME in the tree), by branch number
+     */
+    public Map<Integer, String> getBranchNames() {
+        return Collections.unmodifiableMap(branchNames);
+    }
+
+    /**
+     * Moves to the next substitution
+     *
+     * @return false if there are no more
+     */
+    public boolean next() throws IOException {
+        if (++row < rows) return true;
+        if (finished) return false;
+
+        readBlock();
+        row = 0;
+        return rows > 0;
+    }
+
+    public int getBranch() {
+        return branches[row];
+    }
+
+    public int getSite() {
+        return sites[row];
+    }
+
+    /**
+     * @return the codon as an index (see Utils.getCodonIndex), which needs no String
+     */
+    public int getCodonFromIndex() {
+        return codonsFrom[row];
+    }
+
+    public int getCodonToIndex() {
+        return codonsTo[row];
+    }
+
+    public String getCodonFrom() {
+        return Utils.getCodonTLA(codonsFrom[row]);
+    }
+
+    public String getCodonTo() {
+        return Utils.getCodonTLA(codonsTo[row]);
+    }
+
+    public char getAminoAcidFrom() {
+        return (char) aminoAcidsFrom[row];
+    }
+
+    public char getAminoAcidTo() {
+        return (char) aminoAcidsTo[row];
+    }
+
+    public boolean isNonSynonymous() {
+        return aminoAcidsFrom[row] != aminoAcidsTo[row];
+    }
+
+    /**
+     * @return the current row as a Substitution
+     */
+    public Substitution getSubstitution() {
+        return new Substitution(getSite(), getCodonFrom(), getCodonTo(), getAminoAcidFrom(), getAminoAcidTo());
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readBlock() throws IOException {
+        rows = readVarint();
+        if (rows == 0) {
+            finished = true;
+            return;
+        }
+
+        int length = readVarint();
+        if (block.length < length) block = new byte[length];
+        in.readFully(block, 0, length);
+        position = 0;
+
+        if (branches.length < rows) {
+            branches = new int[rows];
+            sites = new int[rows];
+            codonsFrom = new int[rows];
+            codonsTo = new int[rows];
+            aminoAcidsFrom = new byte[rows];
+            aminoAcidsTo = new byte[rows];
+        }
+
+        for (int i = 0; i < rows; i++) branches[i] = getVarint();
+        for (int i = 0; i < rows; i++) sites[i] = getVarint();
+        for (int i = 0; i < rows; i++) codonsFrom[i] = getVarint();
+        for (int i = 0; i < rows; i++) codonsTo[i] = getVarint();
+        System.arraycopy(block, position, aminoAcidsFrom, 0, rows);
+        System.arraycopy(block, position + rows, aminoAcidsTo, 0, rows);
+    }
+
+    // Varint in the current block
+    private int getVarint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = block[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    // Varint in the file, outside the blocks
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) throw new EOFException("Unexpected end of the binary substitutions file.");
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package treesub.ancestral;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Writes substitutions in the compact binary format read by BinarySubstitutionReader, which holds the same
+ * rows as substitutions.tsv. Numbers are written as unsigned varints (7 bits a byte, least significant
+ * first, high bit set if more bytes follow). The file is:
+ *
+ *   "TSUB", version byte
+ *   varint sites, varint branches, then for each branch: varint number, varint length, UTF-8 name
+ *   blocks of up to BLOCK_ROWS rows: varint rows, varint length of the block in bytes, then the columns
+ *     branch (varints), site (varints), codon from and codon to (varint codon index, see Utils.getCodonIndex),
+ *     amino acid from and amino acid to (a byte each)
+ *   varint 0
+ *
+ * Writing the columns of a block together keeps similar values next to each other, and lets the reader
+ * decode a whole block from one array.
+ */
+class BinarySubstitutionWriter {
+    static final byte[] MAGIC = {'T', 'S', 'U', 'B'};
+    static final int VERSION = 1;
+    static final int BLOCK_ROWS = 1 << 16;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final OutputStream out;
+
+    // The rows of the current block
+    private final int[] branches = new int[BLOCK_ROWS];
+    private final int[] sites = new int[BLOCK_ROWS];
+    private final int[] codonsFrom = new int[BLOCK_ROWS];
+    private final int[] codonsTo = new int[BLOCK_ROWS];
+    private final byte[] aminoAcidsFrom = new byte[BLOCK_ROWS];
+    private final byte[] aminoAcidsTo = new byte[BLOCK_ROWS];
+    private int rows = 0;
+
+    // The columns of the current block, encoded
+    private byte[] block = new byte[BLOCK_ROWS * 8];
+    private int length = 0;
+
+    /**
+     * @param branchNames the name of each branch, by branch number
+     */
+    BinarySubstitutionWriter(String file, int sites, Map<Integer, String> branchNames) throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        out.write(MAGIC);
+        out.write(VERSION);
+
+        writeVarint(sites);
+        writeVarint(branchNames.size());
+        for (Map.Entry<Integer, String> e : branchNames.entrySet()) {
+            byte[] name = e.getValue().getBytes(Charsets.UTF_8);
+            writeVarint(e.getKey());
+            writeVarint(name.length);
+            out.write(name);
+        }
+    }
+
+    void write(int branch, int site, int codonFrom, int codonTo, char aminoAcidFrom, char aminoAcidTo) throws IOException {
+        branches[rows] = branch;
+        sites[rows] = site;
+        codonsFrom[rows] = codonFrom;
+        codonsTo[rows] = codonTo;
+        aminoAcidsFrom[rows] = (byte) aminoAcidFrom;
+        aminoAcidsTo[rows] = (byte) aminoAcidTo;
+        if (++rows == BLOCK_ROWS) writeBlock();
+    }
+
+    void close() throws IOException {
+        if (rows > 0) writeBlock();
+        writeVarint(0);
+        out.close();
+    }
+
+    private void writeBlock() throws IOException {
+        for (int i = 0; i < rows; i++) putVarint(branches[i]);
+        for (int i = 0; i < rows; i++) putVarint(sites[i]);
+        for (int i = 0; i < rows; i++) putVarint(codonsFrom[i]);
+        for (int i = 0; i < rows; i++) putVarint(codonsTo[i]);
+        ensureCapacity(2 * rows);
+        System.arraycopy(aminoAcidsFrom, 0, block, length, rows);
+        System.arraycopy(aminoAcidsTo, 0, block, length + rows, rows);
+        length += 2 * rows;
+
+        writeVarint(rows);
+        writeVarint(length);
+        out.write(block, 0, length);
+
+        length = 0;
+        rows = 0;
+    }
+
+    private void putVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            block[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[length++] = (byte) value;
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void ensureCapacity(int more) {
+        if (length + more > block.length) block = Arrays.copyOf(block, Math.max(block.length * 2, length + more));
+    }
+}
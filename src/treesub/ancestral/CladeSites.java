@@ -0,0 +1,87 @@
+package treesub.ancestral;
+
+import pal.tree.Node;
+import pal.tree.Tree;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The sites that changed anywhere within the clade below each node (on any branch below it, not including
+ * the branch above the node itself), for all substitutions and for non-synonymous substitutions only.
+ * They are built in one post-order pass, in which each node's sets are the union of its children's sets
+ * and the sites that changed on the branches to its children, so the total work is O(nodes x sites / 64).
+ *
+ * Nodes are given by their branch number (the NUMBER attribute). Leaves have empty sets.
+ */
+public class CladeSites {
+    private static final BitSet EMPTY = new BitSet(0);
+
+    private final BitSet[] sites;
+    private final BitSet[] nonSynonymousSites;
+
+    CladeSites(ParseRST p) {
+        Tree tree = p.getTree();
+        SubstitutionTable substitutions = p.getSubstitutionTable();
+        int nodes = tree.getExternalNodeCount() + tree.getInternalNodeCount();
+        sites = new BitSet[nodes];
+        nonSynonymousSites = new BitSet[nodes];
+
+        // Post-order walk with explicit stacks, so very deep trees don't overflow the call stack
+        Deque<Node> pending = new ArrayDeque<Node>();
+        Deque<Node> postOrder = new ArrayDeque<Node>();
+        pending.push(tree.getRoot());
+        while (!pending.isEmpty()) {
+            Node n = pending.pop();
+            postOrder.push(n);
+            for (int i = 0; i < n.getChildCount(); i++) pending.push(n.getChild(i));
+        }
+
+        while (!postOrder.isEmpty()) {
+            Node n = postOrder.pop();
+            if (n.isLeaf()) continue;
+
+            BitSet all = new BitSet();
+            BitSet nonSynonymous = new BitSet();
+            for (int i = 0; i < n.getChildCount(); i++) {
+                Node child = n.getChild(i);
+                int c = p.getBranchNumber(child);
+                if (!child.isLeaf()) {
+                    all.or(sites[c]);
+                    nonSynonymous.or(nonSynonymousSites[c]);
+                }
+
+                for (int row = substitutions.getStart(c); row < substitutions.getEnd(c); row++) {
+                    all.set(substitutions.getSite(row));
+                    if (!substitutions.isSynonymous(row)) nonSynonymous.set(substitutions.getSite(row));
+                }
+            }
+
+            int b = p.getBranchNumber(n);
+            sites[b] = all;
+            nonSynonymousSites[b] = nonSynonymous;
+        }
+    }
+
+    /**
+     * @return the sites (numbered from 1) that changed within the clade below the node. Do not modify it.
+     */
+    public BitSet getSites(int branch) {
+        return sites[branch] == null ? EMPTY : sites[branch];
+    }
+
+    public BitSet getNonSynonymousSites(int branch) {
+        return nonSynonymousSites[branch] == null ? EMPTY : nonSynonymousSites[branch];
+    }
+
+    public int getSiteCount(int branch) {
+        return getSites(branch).cardinality();
+    }
+
+    public int getNonSynonymousSiteCount(int branch) {
+        return getNonSynonymousSites(branch).cardinality();
+    }
+}
@@ -0,0 +1,107 @@
+package treesub.ancestral;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import treesub.Constants;
+import treesub.Utils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Holds the extant and reconstructed codon sequences. Each codon index (see Utils.getCodonIndex) fits in
+ * 16 bits, and each sequence is stored as an array of longs holding four codons each, rather than a List of
+ * codon Strings, which takes a fraction of the memory for large trees. Sequences are looked up by key to get
+ * a row number, and then codons are read by row and site without creating any objects.
+ *
+ * Packing the codons into longs also lets us compare two sequences four codons at a time (see nextDifference).
+ */
+public class CodonStore {
+    private static final int CODONS_PER_WORD = 4;
+    private static final int CODON_BITS = 16;
+    private static final long CODON_MASK = (1L << CODON_BITS) - 1;
+
+    private final Map<String, Integer> rows = Maps.newHashMap();
+    private final List<long[]> codons = Lists.newArrayList();
+    private int siteCount = -1;
+
+    /**
+     * @param key the sequence name, or "node#n" for a reconstructed ancestral node
+     * @param sequence the nucleotide sequence, which must be a whole number of codons
+     * @return the row of the new sequence
+     */
+    public int add(String key, CharSequence sequence) {
+        if (sequence.length() % Constants.CODON_LENGTH != 0) {
+            throw new IllegalArgumentException("Sequence '" + key + "' is not a whole number of codons.");
+        }
+
+        int sites = sequence.length() / Constants.CODON_LENGTH;
+        if (siteCount == -1) {
+            siteCount = sites;
+        } else if (sites != siteCount) {
+            throw new IllegalArgumentException(String.format("Sequence '%s' has %s codons, expected %s.", key, sites, siteCount));
+        }
+
+        long[] row = new long[(sites + CODONS_PER_WORD - 1) / CODONS_PER_WORD];
+        for (int i = 0; i < sites; i++) {
+            int j = i * Constants.CODON_LENGTH;
+            int codon = Utils.getCodonIndex(sequence.charAt(j), sequence.charAt(j + 1), sequence.charAt(j + 2));
+            if (codon == -1) {
+                throw new IllegalArgumentException(String.format("Sequence '%s' has unknown codon '%s' at site %s.",
+                        key, sequence.subSequence(j, j + Constants.CODON_LENGTH), i + 1));
+            }
+            row[i / CODONS_PER_WORD] |= (long) codon << (CODON_BITS * (i % CODONS_PER_WORD));
+        }
+
+        rows.put(key, codons.size());
+        codons.add(row);
+        return codons.size() - 1;
+    }
+
+    /**
+     * @return the row for this sequence, or -1 if there is no such sequence
+     */
+    public int getRow(String key) {
+        Integer row = rows.get(key);
+        return row == null ? -1 : row;
+    }
+
+    public int getCodon(int row, int site) {
+        return (int) ((codons.get(row)[site / CODONS_PER_WORD] >>> (CODON_BITS * (site % CODONS_PER_WORD))) & CODON_MASK);
+    }
+
+    /**
+     * Finds the next site, from the given site onwards, where the two sequences have different codons. The
+     * sequences are compared a word (four codons) at a time, so runs of identical codons are skipped quickly.
+     *
+     * @return the site of the next difference, or -1 if the sequences are the same from the given site to the end
+     */
+    public int nextDifference(int rowA, int rowB, int site) {
+        long[] a = codons.get(rowA);
+        long[] b = codons.get(rowB);
+
+        int word = site / CODONS_PER_WORD;
+        if (word >= a.length) return -1;
+
+        // Ignore the codons before the given site in the first word
+        long diff = (a[word] ^ b[word]) & (-1L << (CODON_BITS * (site % CODONS_PER_WORD)));
+
+        while (diff == 0) {
+            if (++word == a.length) return -1;
+            diff = a[word] ^ b[word];
+        }
+
+        // Padding after the last site is zero in every row, so it never shows up as a difference
+        return word * CODONS_PER_WORD + Long.numberOfTrailingZeros(diff) / CODON_BITS;
+    }
+
+    public int getSiteCount() {
+        return siteCount == -1 ? 0 : siteCount;
+    }
+
+    public int size() {
+        return codons.size();
+    }
+}
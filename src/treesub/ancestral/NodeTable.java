@@ -0,0 +1,70 @@
+package treesub.ancestral;
+
+import pal.tree.Node;
+import pal.tree.Tree;
+import treesub.tree.Attributes;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The nodes of the tree read from the rst file, in arrays indexed by branch number (leaves first, then the
+ * internal nodes; see getBranchNumber). It is built once, after reading the reconstruction, and holds what
+ * ParseRST needs for every node: the key of its sequence, its row in the CodonStore, its parent, and a slot
+ * for its attributes (the substitutions are in a SubstitutionTable). Going through the arrays visits the
+ * branches in the same order on every run, and no node is ever looked up in a hash table.
+ */
+class NodeTable {
+    private final int externalCount;
+
+    final Node[] nodes;
+    final String[] keys;
+    final int[] rows;
+    final int[] parents;
+    final int root;
+
+    final Attributes[] attributes;
+
+    /**
+     * @param tree the tree with branch lengths, whose leaves are named by their sequence keys
+     * @param labels the same tree with the internal nodes labelled by their numbers in the rst file
+     */
+    NodeTable(Tree tree, Tree labels, CodonStore seqs) {
+        externalCount = tree.getExternalNodeCount();
+        int size = externalCount + tree.getInternalNodeCount();
+
+        nodes = new Node[size];
+        keys = new String[size];
+        rows = new int[size];
+        parents = new int[size];
+        attributes = new Attributes[size];
+
+        for (int i = 0; i < externalCount; i++) {
+            nodes[i] = tree.getExternalNode(i);
+            keys[i] = nodes[i].getIdentifier().getName();
+        }
+        for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+            nodes[externalCount + i] = tree.getInternalNode(i);
+            keys[externalCount + i] = "node#" + labels.getInternalNode(i).getIdentifier().getName();
+        }
+
+        int rootBranch = -1;
+        for (int b = 0; b < size; b++) {
+            rows[b] = seqs.getRow(keys[b]);
+            if (nodes[b].isRoot()) {
+                parents[b] = -1;
+                rootBranch = b;
+            } else {
+                parents[b] = getBranchNumber(nodes[b].getParent());
+            }
+        }
+        root = rootBranch;
+    }
+
+    int size() {
+        return nodes.length;
+    }
+
+    int getBranchNumber(Node n) {
+        return (n.isLeaf() ? 0 : externalCount) + n.getNumber();
+    }
+}
@@ -0,0 +1,293 @@
+package treesub.ancestral;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import pal.tree.Node;
+import pal.tree.Tree;
+import treesub.ChannelWriter;
+import treesub.Constants;
+import treesub.tree.Attributes;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Parses the PAML reconstructions of many genes that share the same taxa and tree, and writes a single
+ * table of substitutions ('substitutions.genes.tsv') and a single NEXUS tree ('substitutions.genes.tree')
+ * to an output directory. Each gene directory is parsed by ParseRST, on a pool shared by all the genes.
+ *
+ * Branches are given the numbers they have in the first gene's tree. A branch of another gene is matched
+ * by its clade, i.e. the names of the sequences below it, so the genes' trees can be written in a different
+ * order. Substitutions on a branch with no match in the first tree are written with branch -1.
+ *
+ * Usage: ParseGenes [-threads n] output-dir gene-dir...
+ */
+public class ParseGenes {
+    private static final String TABLE_FILE = "substitutions.genes.tsv";
+    private static final String TREE_FILE = "substitutions.genes.tree";
+
+    private final List<String> genes = Lists.newArrayList();
+    private final List<ParseRST> parsed = Lists.newArrayList();
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // Sequence name -> bit in a clade, and clade -> branch number, from the first gene
+    private final Map<String, Integer> taxa = Maps.newHashMap();
+    private final Map<BitSet, Integer> branchNumbers = Maps.newHashMap();
+
+    // The common branch number of every branch, for each gene
+    private final List<Map<Node, Integer>> geneBranches = Lists.newArrayList();
+
+    public static void main(String[] args) throws Exception {
+        ParseGenes p = new ParseGenes();
+        int i = 0;
+        if (args.length > 1 && args[0].equals("-threads")) {
+            p.setThreads(Integer.parseInt(args[1]));
+            i = 2;
+        }
+        if (args.length - i < 2) {
+            System.out.println("Usage: ParseGenes [-threads n] output-dir gene-dir...");
+            System.exit(1);
+        }
+
+        List<String> dirs = Lists.newArrayList();
+        for (int j = i + 1; j < args.length; j++) dirs.add(args[j]);
+        p.run(args[i], dirs);
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Threads must be at least 1, got " + threads);
+        this.threads = threads;
+    }
+
+    public void run(String output, List<String> dirs) throws Exception {
+        parse(dirs);
+        matchBranches();
+
+        for (int i = 0; i < genes.size(); i++) {
+            System.out.printf("%s: %s branches, %s substitutions\n", genes.get(i), parsed.get(i).getBranchCount(),
+                    parsed.get(i).getSubstitutionCount());
+        }
+
+        writeTable(output + "/" + TABLE_FILE);
+        writeTree(output + "/" + TREE_FILE);
+    }
+
+    /**
+     * Parses every gene directory on the pool. Each gene is parsed on a single thread: there are usually
+     * many more genes than processors.
+     */
+    private void parse(List<String> dirs) throws Exception {
+        // Each gene's name is its directory's name, which must be unique, or the genes' columns in the tree
+        // would overwrite each other
+        Map<String, String> names = Maps.newHashMap();
+        for (String dir : dirs) {
+            String other = names.put(getAttributeName(new File(dir).getName()), dir);
+            if (other != null) {
+                throw new IllegalArgumentException(String.format(
+                        "Genes '%s' and '%s' have the same name. Each gene directory needs a different name.", other, dir));
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<ParseRST>> futures = Lists.newArrayList();
+
+        try {
+            for (final String dir : dirs) {
+                genes.add(new File(dir).getName());
+                futures.add(pool.submit(new Callable<ParseRST>() {
+                    public ParseRST call() throws Exception {
+                        ParseRST p = new ParseRST();
+                        p.setParallelism(1);
+                        p.loadRealNames(dir + "/" + Constants.ALIGNMENT_NAMES);
+                        p.readReconstruction(dir + "/" + Constants.PAML_RECONSTRUCTION_FILE);
+                        p.findSubstitutions();
+                        p.releaseSequences(); // only the tree and substitutions are needed from here on
+                        return p;
+                    }
+                }));
+            }
+
+            for (Future<ParseRST> f : futures) parsed.add(f.get());
+        } catch (Exception e) {
+            pool.shutdownNow(); // don't parse the other genes
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // The gene's name as used in the tree's attributes
+    private static String getAttributeName(String gene) {
+        return gene.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    private void matchBranches() {
+        ParseRST reference = parsed.get(0);
+        Tree tree = reference.getTree();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            taxa.put(getName(reference, tree.getExternalNode(i)), i);
+        }
+
+        for (Map.Entry<Node, BitSet> e : getClades(reference).entrySet()) {
+            branchNumbers.put(e.getValue(), reference.getBranchNumber(e.getKey()));
+        }
+
+        for (int i = 0; i < parsed.size(); i++) {
+            Map<Node, Integer> branches = Maps.newHashMap();
+            int unmatched = 0;
+
+            for (Map.Entry<Node, BitSet> e : getClades(parsed.get(i)).entrySet()) {
+                Integer branch = branchNumbers.get(e.getValue());
+                if (branch == null) {
+                    branch = -1;
+                    unmatched++;
+                }
+                branches.put(e.getKey(), branch);
+            }
+
+            if (unmatched > 0) {
+                System.err.printf("Warning: %s branches of %s are not in the tree of %s.\n", unmatched, genes.get(i), genes.get(0));
+            }
+            geneBranches.add(branches);
+        }
+    }
+
+    /**
+     * @return the clade (set of sequences) below every branch of the gene's tree, found by a post-order walk
+     *         using an explicit stack, as in ParseRST
+     */
+    private Map<Node, BitSet> getClades(ParseRST p) {
+        Tree tree = p.getTree();
+        Map<Node, BitSet> clades = Maps.newHashMap();
+
+        Deque<Node> pending = new ArrayDeque<Node>();
+        Deque<Node> postOrder = new ArrayDeque<Node>();
+        pending.push(tree.getRoot());
+        while (!pending.isEmpty()) {
+            Node n = pending.pop();
+            postOrder.push(n);
+            for (int i = 0; i < n.getChildCount(); i++) pending.push(n.getChild(i));
+        }
+
+        while (!postOrder.isEmpty()) {
+            Node n = postOrder.pop();
+            BitSet clade = new BitSet(taxa.size());
+            if (n.isLeaf()) {
+                Integer taxon = taxa.get(getName(p, n));
+                if (taxon == null) {
+                    throw new IllegalArgumentException(String.format("Sequence '%s' is not in the tree of %s.",
+                            getName(p, n), genes.get(0)));
+                }
+                clade.set(taxon);
+            } else {
+                for (int i = 0; i < n.getChildCount(); i++) clade.or(clades.get(n.getChild(i)));
+            }
+            clades.put(n, clade);
+        }
+
+        clades.remove(tree.getRoot());
+        return clades;
+    }
+
+    private String getName(ParseRST p, Node n) {
+        return p.getNodeAttributes(n).get(Attributes.Key.REALNAME);
+    }
+
+    private void writeTable(String file) throws Exception {
+        ChannelWriter out = new ChannelWriter(file);
+        out.write("gene\tbranch\tsite\tcodon_from\tcodon_to\taa_from\taa_to\tstring\tnon_synonymous\n");
+
+        for (int i = 0; i < parsed.size(); i++) {
+            ParseRST p = parsed.get(i);
+
+            // Sort the gene's branches by their common number, so the table is in the same order every time
+            List<Map.Entry<Node, Integer>> branches = Lists.newArrayList(geneBranches.get(i).entrySet());
+            Collections.sort(branches, new Comparator<Map.Entry<Node, Integer>>() {
+                public int compare(Map.Entry<Node, Integer> a, Map.Entry<Node, Integer> b) {
+                    return a.getValue().compareTo(b.getValue());
+                }
+            });
+
+            SubstitutionTable.Cursor s = p.getSubstitutionTable().cursor();
+            for (Map.Entry<Node, Integer> e : branches) {
+                s.moveTo(p.getBranchNumber(e.getKey()));
+                while (s.next()) {
+                    // gene, branch, site, codon_from, codon_to, aa_from, aa_to, string (e.g. K108Q), non_synonymous
+                    out.append(genes.get(i)).append('\t')
+                            .writeInt(e.getValue()).append('\t')
+                            .writeInt(s.getSite()).append('\t')
+                            .append(s.getCodonFrom()).append('\t')
+                            .append(s.getCodonTo()).append('\t')
+                            .append(s.getAminoAcidFrom()).append('\t')
+                            .append(s.getAminoAcidTo()).append('\t')
+                            .append(s.getAminoAcidFrom()).writeInt(s.getSite()).append(s.getAminoAcidTo()).append('\t');
+                    if (!s.isSynonymous()) out.write('*');
+                    out.write('\n');
+                }
+            }
+        }
+
+        out.close();
+    }
+
+    /**
+     * Writes the first gene's tree, with the number of substitutions (all and non-synonymous) of each gene on
+     * every branch, e.g. [&REALNAME="node#52",NUMBER="52",SUBS="7",NONSYN="2",HA_SUBS="5",HA_NONSYN="1",...]
+     */
+    private void writeTree(String file) throws Exception {
+        ParseRST reference = parsed.get(0);
+        Tree tree = reference.getTree();
+
+        // Counts for each common branch number, for each gene
+        int branchCount = tree.getExternalNodeCount() + tree.getInternalNodeCount();
+        int[][] subs = new int[genes.size()][branchCount];
+        int[][] nonSyn = new int[genes.size()][branchCount];
+
+        for (int i = 0; i < parsed.size(); i++) {
+            SubstitutionTable table = parsed.get(i).getSubstitutionTable();
+            for (Map.Entry<Node, Integer> e : geneBranches.get(i).entrySet()) {
+                if (e.getValue() == -1) continue;
+                int branch = parsed.get(i).getBranchNumber(e.getKey());
+                subs[i][e.getValue()] = table.size(branch);
+                nonSyn[i][e.getValue()] = table.size(branch) - table.count(branch, SubstitutionTable.IS_SYNONYMOUS);
+            }
+        }
+
+        Map<Node, Attributes> nodeAttributes = Maps.newHashMap();
+        for (Node n : geneBranches.get(0).keySet()) {
+            int branch = reference.getBranchNumber(n);
+            Attributes a = new Attributes(Attributes.Key.REALNAME, getName(reference, n));
+            a.add(Attributes.Key.NUMBER, Integer.toString(branch));
+
+            int total = 0, totalNonSyn = 0;
+            for (int i = 0; i < genes.size(); i++) {
+                total += subs[i][branch];
+                totalNonSyn += nonSyn[i][branch];
+            }
+            a.add("SUBS", Integer.toString(total));
+            a.add("NONSYN", Integer.toString(totalNonSyn));
+
+            for (int i = 0; i < genes.size(); i++) {
+                String gene = getAttributeName(genes.get(i));
+                a.add(gene + "_SUBS", Integer.toString(subs[i][branch]));
+                a.add(gene + "_NONSYN", Integer.toString(nonSyn[i][branch]));
+            }
+            nodeAttributes.put(n, a);
+        }
+
+        ParseRST.writeNexus(file, tree, Functions.forMap(nodeAttributes));
+    }
+}
@@ -1,25 +1,22 @@
 package treesub.ancestral;
 
-import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
-import com.google.common.base.Predicates;
-import com.google.common.collect.Collections2;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import pal.tree.Node;
 import pal.tree.Tree;
-import pal.tree.TreeTool;
+import treesub.ChannelWriter;
 import treesub.Constants;
 import treesub.Utils;
 import treesub.tree.Attributes;
 
 import java.io.*;
 import java.nio.charset.Charset;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author tamuri@ebi.ac.uk
@@ -28,254 +25,384 @@ import java.util.Set;
 public class ParseRST {
 
     private List<String> names = Lists.newArrayList();
-    private Map<String, List<String>> seqs;
+    private CodonStore seqs;
+    private int sequenceCount;
+    private int siteCount;
     private Tree[] trees;
 
-    private Map<Node, Attributes> nodeAttributes = Maps.newHashMap();
-    private Map<Node, List<Substitution>> nodeSubstitutions = Maps.newHashMap();
+    // The nodes of trees[0], with their attributes, indexed by branch number
+    private NodeTable nodes;
+    private SubstitutionTable substitutions;
+    private SubstitutionIndex index;
+    private SubstitutionStats stats;
+    private CladeSites cladeSites;
+
+    // Number of threads used to find the substitutions on each branch. 1 means walk the tree on this thread
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    // Also write the substitutions in the compact binary format (see BinarySubstitutionWriter)
+    private boolean binaryOutput = false;
+
+    // Smallest number of branches handled by a single fork-join task
+    private static final int BRANCHES_PER_TASK = 64;
 
 
     public static void main(String[] args) throws Exception {
         ParseRST p = new ParseRST();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-binary")) {
+                p.setBinaryOutput(true);
+            } else {
+                p.setParallelism(Integer.parseInt(args[i]));
+            }
+        }
         p.run(args[0]);
     }
 
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    public void setBinaryOutput(boolean binaryOutput) {
+        this.binaryOutput = binaryOutput;
+    }
+
     public void run(String f) throws  Exception{
         // TODO: What is they haven't run treesub and just parsing PAML?!
         loadRealNames(f + "/" + Constants.ALIGNMENT_NAMES);
 
-        seqs = getSequences(f + "/" + Constants.PAML_RECONSTRUCTION_FILE);
-        trees = getTrees(f + "/" + Constants.PAML_RECONSTRUCTION_FILE);
-        traverse(trees[0].getRoot());
-
+        readReconstruction(f + "/" + Constants.PAML_RECONSTRUCTION_FILE);
+        findSubstitutions();
         writeResults(f);
     }
 
-    private void loadRealNames (String f) throws Exception {
+    public int getSequenceCount() {
+        return sequenceCount;
+    }
+
+    public int getBranchCount() {
+        return nodes.size() - 1; // every node but the root
+    }
+
+    public int getSubstitutionCount() {
+        return substitutions.size();
+    }
+
+    /**
+     * @return an index for querying the substitutions by branch, site and clade, which is built the first
+     *         time it is asked for (after run)
+     */
+    public synchronized SubstitutionIndex getSubstitutionIndex() {
+        if (index == null) index = new SubstitutionIndex(this, siteCount);
+        return index;
+    }
+
+    /**
+     * @return the number of substitutions at each site and on each branch (after run)
+     */
+    public SubstitutionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the sites that changed within the clade below each node (after run)
+     */
+    public CladeSites getCladeSites() {
+        return cladeSites;
+    }
+
+    // The steps of run() are package-private so they can be benchmarked separately
+
+    void findSubstitutions() {
+        if (parallelism > 1) {
+            traverseParallel();
+        } else {
+            traverse();
+        }
+        substitutions.index(nodes.size());
+
+        stats = new SubstitutionStats(siteCount, nodes.size());
+        for (int b = 0; b < nodes.size(); b++) {
+            if (b == nodes.root) continue;
+            stats.add(substitutions, b);
+            nodes.attributes[b] = getAttributes(b);
+        }
+
+        cladeSites = new CladeSites(this);
+        for (int b = trees[0].getExternalNodeCount(); b < nodes.size(); b++) {
+            if (b == nodes.root) continue;
+            nodes.attributes[b].add(Attributes.Key.CLADESITES, Integer.toString(cladeSites.getSiteCount(b)));
+            nodes.attributes[b].add(Attributes.Key.CLADENONSYNSITES, Integer.toString(cladeSites.getNonSynonymousSiteCount(b)));
+        }
+    }
+
+    Tree getTree() {
+        return trees[0];
+    }
+
+    void loadRealNames (String f) throws Exception {
         File nameFile = new File(f);
         if (nameFile.exists()) {
             names = Files.readLines(new File(f), Charset.defaultCharset());
         }
     }
 
-    private void traverse(Node n) {
-        List<Substitution> substitutions;
+    /**
+     * Compares every branch's sequence with its parent's, in order of branch number
+     */
+    private void traverse() {
+        substitutions = new SubstitutionTable();
+        findSubstitutions(substitutions, 0, nodes.size());
+    }
 
-        if (n.isLeaf()) {
+    /**
+     * Does the same as traverse, but splits the branches of the tree into runs of BRANCHES_PER_TASK across a
+     * fork-join pool. Every branch is compared with its parent independently, so each run of branches gets
+     * its own table and the tables are joined, in order, once all the tasks have finished.
+     */
+    private void traverseParallel() {
+        SubstitutionTable[] runs = new SubstitutionTable[(nodes.size() + BRANCHES_PER_TASK - 1) / BRANCHES_PER_TASK];
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new BranchTask(runs, 0, runs.length));
+        } finally {
+            pool.shutdown();
+        }
 
-            substitutions = getSubstitutions(getSequenceKey(n), getSequenceKey(n.getParent()));
-            nodeSubstitutions.put(n, substitutions);
+        substitutions = new SubstitutionTable();
+        for (SubstitutionTable run : runs) substitutions.addAll(run);
+    }
 
+    private void findSubstitutions(SubstitutionTable table, int start, int end) {
+        for (int b = start; b < end; b++) {
+            if (b != nodes.root) addSubstitutions(table, b, nodes.rows[b], nodes.rows[nodes.parents[b]]);
+        }
+    }
 
-            Attributes a = getAttributes(n, substitutions);
-            nodeAttributes.put(n, a);
+    @SuppressWarnings("serial") // never serialized
+    private class BranchTask extends RecursiveAction {
+        private final SubstitutionTable[] runs;
+        private final int start, end;
 
-        } else {
+        BranchTask(SubstitutionTable[] runs, int start, int end) {
+            this.runs = runs;
+            this.start = start;
+            this.end = end;
+        }
 
-            for (int i = 0; i < n.getChildCount(); i++) {
-                traverse(n.getChild(i));
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                runs[start] = new SubstitutionTable();
+                findSubstitutions(runs[start], start * BRANCHES_PER_TASK, Math.min(nodes.size(), end * BRANCHES_PER_TASK));
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new BranchTask(runs, start, middle), new BranchTask(runs, middle, end));
             }
+        }
+    }
 
-            if (!n.isRoot()) {
-                substitutions = getSubstitutions(getSequenceKey(n), getSequenceKey(n.getParent()));
-                nodeSubstitutions.put(n, substitutions);
-                Attributes a = getAttributes(n, substitutions);
-                nodeAttributes.put(n, a);
+    void writeResults(String f) throws Exception  {
+        // Write out the NEXUS format tree
+        writeNexus(f + "/substitutions.tree", trees[0], new Function<Node, Attributes>() {
+            public Attributes apply(Node n) {
+                return nodes.attributes[nodes.getBranchNumber(n)];
             }
+        });
+
+        // table of substitutions
+        ChannelWriter subs_out = new ChannelWriter(f + "/substitutions.tsv");
+        subs_out.write("branch\tsite\tcodon_from\tcodon_to\taa_from\taa_to\tstring\tnon_synonymous\n");
+
+        SubstitutionTable.Cursor s = substitutions.cursor();
+        while (s.next()) {
+            // branch, site, codon_from, codon_to, aa_from, aa_to, string (e.g. K108Q), non_synonymous
+            subs_out.writeInt(s.getBranch()).append('\t')
+                    .writeInt(s.getSite()).append('\t')
+                    .append(s.getCodonFrom()).append('\t')
+                    .append(s.getCodonTo()).append('\t')
+                    .append(s.getAminoAcidFrom()).append('\t')
+                    .append(s.getAminoAcidTo()).append('\t')
+                    .append(s.getAminoAcidFrom()).writeInt(s.getSite()).append(s.getAminoAcidTo()).append('\t');
+            if (!s.isSynonymous()) subs_out.write('*');
+            subs_out.write('\n');
+        }
+
+        subs_out.close();
+
+        // totals for each site and branch
+        String[] branchNames = new String[nodes.size()];
+        for (int b = 0; b < nodes.size(); b++) {
+            if (b != nodes.root) branchNames[b] = nodes.attributes[b].get(Attributes.Key.REALNAME);
         }
+        stats.writeSites(f + "/site_summary.tsv");
+        stats.writeBranches(f + "/branch_summary.tsv", branchNames);
+
+        if (binaryOutput) writeBinary(f + "/substitutions.bin");
     }
 
-    private void writeResults(String f) throws Exception  {
-        // Write out the NEXUS format tree
-        BufferedWriter out = new BufferedWriter(new FileWriter(f + "/substitutions.tree"));
+    /**
+     * Writes the same substitutions as substitutions.tsv, in the same order, in the binary format
+     */
+    private void writeBinary(String file) throws IOException {
+        Map<Integer, String> branchNames = Maps.newTreeMap();
+        for (int b = 0; b < nodes.size(); b++) {
+            if (b != nodes.root) branchNames.put(b, nodes.attributes[b].get(Attributes.Key.REALNAME));
+        }
+
+        BinarySubstitutionWriter out = new BinarySubstitutionWriter(file, siteCount, branchNames);
+        SubstitutionTable.Cursor s = substitutions.cursor();
+        while (s.next()) {
+            out.write(s.getBranch(), s.getSite(), s.getCodonFromIndex(), s.getCodonToIndex(), s.getAminoAcidFrom(), s.getAminoAcidTo());
+        }
+        out.close();
+    }
+
+    /**
+     * Writes a NEXUS file with a taxa block (leaves with their attributes) and the tree (internal nodes with
+     * their attributes)
+     */
+    static void writeNexus(String file, Tree tree, Function<Node, Attributes> nodeAttributes) throws IOException {
+        ChannelWriter out = new ChannelWriter(file);
 
         out.write("#NEXUS\n");
         out.write("begin taxa;\n");
-        out.write("\tdimensions ntax=" + trees[0].getExternalNodeCount() + ";\n");
+        out.write("\tdimensions ntax=");
+        out.writeInt(tree.getExternalNodeCount());
+        out.write(";\n");
         out.write("\ttaxlabels\n");
-        for (int i = 0; i < trees[0].getExternalNodeCount(); i++) {
-            out.write("\t\t'" + nodeAttributes.get(trees[0].getExternalNode(i)).get(Attributes.Key.REALNAME) + "'");
-            out.write(nodeAttributes.get(trees[0].getExternalNode(i)).toString());
-            out.write("\n");
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            Attributes a = nodeAttributes.apply(tree.getExternalNode(i));
+            out.write("\t\t'");
+            out.write(a.get(Attributes.Key.REALNAME));
+            out.write('\'');
+            a.appendTo(out);
+            out.write('\n');
         }
         out.write(";\nend;\n\n");
         out.write("begin trees;\n");
 
         out.write("tree tree_1 = [&R] ");
-        Utils.printNH(new PrintWriter(out), trees[0].getRoot(), nodeAttributes);
+        Utils.printNH(out, tree.getRoot(), nodeAttributes);
         out.write(";\nend;\n");
         out.close();
-
-        // table of substitutions
-        BufferedWriter subs_out = new BufferedWriter(new FileWriter(f + "/substitutions.tsv"));
-        subs_out.write("branch\tsite\tcodon_from\tcodon_to\taa_from\taa_to\tstring\tnon_synonymous\n");
-
-
-        for (Map.Entry<Node, List<Substitution>> e : nodeSubstitutions.entrySet()) {
-            String name = nodeAttributes.get(e.getKey()).get(Attributes.Key.NUMBER);
-            List<Substitution> substitutions = e.getValue();
-
-            for (Substitution s : substitutions) {
-                subs_out.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n",
-                        name,
-                        s.site,
-                        s.codonFrom,
-                        s.codonTo,
-                        s.aaFrom,
-                        s.aaTo,
-                        s.toString(),
-                        s.aaFrom == s.aaTo ? "" : "*"));
-            }
-
-        }
-
-        subs_out.close();
     }
 
-    private Attributes getAttributes(Node node, List<Substitution> substitutions) {
+    private Attributes getAttributes(int branch) {
 
         String name;
-        if (node.isLeaf() && names.size() > 0) {
-            name = names.get(Integer.parseInt(getSequenceKey(node).split("_")[1]) - 1);
+        if (nodes.nodes[branch].isLeaf() && names.size() > 0) {
+            name = names.get(Integer.parseInt(nodes.keys[branch].split("_")[1]) - 1);
         } else {
-            name = getSequenceKey(node);
+            name = nodes.keys[branch];
         }
 
         Attributes a = new Attributes(Attributes.Key.REALNAME, name);
-        a.add(Attributes.Key.NUMBER, Integer.toString(getBranchNumber(node)));
-
-        if (substitutions.size() > 0) a.add(Attributes.Key.ALLSUBS, substitutions.toString());
-
-        Collection<Substitution> nonsynSubs = Collections2.filter(substitutions, Predicates.not(new Substitution.isSynSubPredicate()));
-        if (nonsynSubs.size() > 0) a.add(Attributes.Key.NONSYNSUBS, nonsynSubs.toString());
+        a.add(Attributes.Key.NUMBER, Integer.toString(branch));
 
-        a.add(Attributes.Key.FULL,
-                String.format("%s - %s %s",
-                        a.get(Attributes.Key.NUMBER),
-                        a.get(Attributes.Key.REALNAME),
-                        a.get(Attributes.Key.ALLSUBS)));
-
-        a.add(Attributes.Key.NAME_AND_SUBS,
-                String.format("%s %s",
-                        a.get(Attributes.Key.REALNAME),
-                        a.get(Attributes.Key.NONSYNSUBS)));
+        // ALLSUBS, NONSYNSUBS, FULL and NAME_AND_SUBS are derived from the substitutions when the tree is written
+        a.setSubstitutions(substitutions, branch);
 
         return a;
     }
 
-    private int getBranchNumber(Node n) {
-        return (n.isLeaf() ? 0 : trees[0].getExternalNodeCount()) + n.getNumber();
+    // Results for a branch (the branch above the node) once findSubstitutions has run
+
+    SubstitutionTable getSubstitutionTable() {
+        return substitutions;
     }
 
+    Attributes getNodeAttributes(Node n) {
+        return nodes.attributes[getBranchNumber(n)];
+    }
 
-    private String getSequenceKey(Node n) {
-        if (n.isLeaf()) {
-            return trees[0].getExternalNode(n.getNumber()).getIdentifier().getName();
-        } else {
-            return "node#" + trees[1].getInternalNode(n.getNumber()).getIdentifier().getName();
-        }
+    int getBranchNumber(Node n) {
+        return nodes.getBranchNumber(n);
     }
 
-    private List<Substitution> getSubstitutions(String child, String parent) {
+    String getSequenceKey(Node n) {
+        return nodes.keys[getBranchNumber(n)];
+    }
 
-        List<String> childSeq = seqs.get(child);
-        List<String> parentSeq = seqs.get(parent);
+    /**
+     * Compares two sequences, as findSubstitutions does, and returns the substitutions as objects
+     */
+    List<Substitution> getSubstitutions(String child, String parent) {
+        int childRow = seqs.getRow(child);
+        int parentRow = seqs.getRow(parent);
 
         List<Substitution> substitutions = Lists.newArrayList();
 
-        for (int i = 0; i < childSeq.size(); i++) {
-            if (!childSeq.get(i).equals(parentSeq.get(i))) {
-
-                char aaFrom, aaTo;
-                Set<Character> aaFromSet = Utils.getAminoAcidsForCodonTLA(parentSeq.get(i));
-                if (aaFromSet.size() > 1) aaFrom = '*'; else aaFrom = aaFromSet.iterator().next();
-
-                Set<Character> aaToSet = Utils.getAminoAcidsForCodonTLA(childSeq.get(i));
-                if (aaToSet.size() > 1) aaTo = '*'; else aaTo = aaToSet.iterator().next();
-
-                Substitution s = new Substitution(i + 1, parentSeq.get(i), childSeq.get(i), aaFrom, aaTo);
-                substitutions.add(s);
-
-            }
+        // Only visit the sites where the codons differ
+        for (int i = seqs.nextDifference(childRow, parentRow, 0); i != -1; i = seqs.nextDifference(childRow, parentRow, i + 1)) {
+            substitutions.add(getSubstitution(i, seqs.getCodon(parentRow, i), seqs.getCodon(childRow, i)));
         }
 
         return substitutions;
     }
 
-    private Tree[] getTrees(String file) throws Exception {
-        Tree[] trees = new Tree[2];
-
-        BufferedReader reader = Files.newReader(new File(file), Charsets.US_ASCII);
-
-        while (!reader.readLine().startsWith("Ancestral reconstruction by")) { /* empty */ }
-
-        String line;
+    private void addSubstitutions(SubstitutionTable table, int branch, int childRow, int parentRow) {
+        // Only visit the sites where the codons differ
+        for (int i = seqs.nextDifference(childRow, parentRow, 0); i != -1; i = seqs.nextDifference(childRow, parentRow, i + 1)) {
+            table.add(branch, i + 1, seqs.getCodon(parentRow, i), seqs.getCodon(childRow, i));
+        }
+    }
 
-        // skip all lines until we read the first tree
-        while (!(line = reader.readLine()).startsWith("(")) { /* empty */ }
+    /**
+     * Reference implementation of getSubstitutions, which compares the sequences one codon at a time. The two
+     * are checked against each other by ParseRSTCheck in the bench directory (ant check).
+     */
+    List<Substitution> getSubstitutionsBySite(String child, String parent) {
 
-        // this is the true tree - use this to get the true branch lengths
-        trees[0] = TreeTool.readTree(new StringReader(line));
+        int childRow = seqs.getRow(child);
+        int parentRow = seqs.getRow(parent);
 
-        // skip all lines until we have read two more trees
-        for (int i = 0; i < 2; i++) while (!(line = reader.readLine()).startsWith("(")) { /* empty */ }
+        List<Substitution> substitutions = Lists.newArrayList();
 
-        // this third tree is tree with the branches labeled - use this to get node/branch names
-        trees[1] = TreeTool.readTree(new StringReader(line));
+        for (int i = 0; i < seqs.getSiteCount(); i++) {
+            int childCodon = seqs.getCodon(childRow, i);
+            int parentCodon = seqs.getCodon(parentRow, i);
 
-        reader.close();
+            if (childCodon != parentCodon) {
+                substitutions.add(getSubstitution(i, parentCodon, childCodon));
+            }
+        }
 
-        return trees;
+        return substitutions;
     }
 
-    private Map<String, List<String>> getSequences(String file) throws Exception{
-        Map<String, List<String>> sequences = Maps.newHashMap();
-
-        // Read the sequences (in particular, the reconstructed nodes)
-        BufferedReader reader = Files.newReader(new File(file), Charsets.US_ASCII);
-
-        while (!reader.readLine().startsWith("List of extant and reconstructed sequences")) { /* empty */ }
-
-        reader.readLine(); // Skip blank line
-        reader.readLine(); // Skip header
-        reader.readLine(); // Skip black line
-
-        String line;
+    /**
+     * Drops the sequences, which are only read by findSubstitutions (and getSubstitutions), for callers that
+     * keep the results of many files, such as ParseGenes
+     */
+    void releaseSequences() {
+        seqs = null;
+    }
 
-        // Until we reach the end of the sequences
-        while ((line = reader.readLine()).trim().length() > 0) {
-            List<String> parts = Lists.newArrayList(line.split("\\s+"));
+    private Substitution getSubstitution(int site, int parentCodon, int childCodon) {
+        return new Substitution(site + 1, Utils.getCodonTLA(parentCodon), Utils.getCodonTLA(childCodon),
+                Utils.getAminoAcidChar(parentCodon), Utils.getAminoAcidChar(childCodon));
+    }
 
-            String key, full;
-            if (parts.get(0).equals("node")) {
-                // This is a reconstructed sequence of ancestral node
-                key = "node" + parts.get(1);
-                parts.remove(0); // 'node'
-                parts.remove(0); // '#n'
+    void readReconstruction(String file) throws Exception {
+        trees = new Tree[2];
+        seqs = new CodonStore();
 
-                full = Joiner.on("").join(parts);
-            } else {
-                // This is a extant sequence
-                key = parts.get(0);
-                parts.remove(0); // sequence name
-                full = Joiner.on("").join(parts);
+        // Read the trees and the sequences (in particular, the reconstructed nodes) in one pass of the file
+        new RSTReader(file).read(new RSTReader.Handler() {
+            public void tree(int index, Tree tree) {
+                trees[index] = tree;
             }
 
-            List<String> sequence = Lists.newArrayList();
-            for (int i = 0; i < full.length(); i += Constants.CODON_LENGTH) {
-                sequence.add(full.substring(i, i + Constants.CODON_LENGTH));
+            public void sequence(String key, CharSequence sequence) {
+                seqs.add(key, sequence);
             }
-            sequences.put(key, sequence);
-        }
-
-        /*
-        for (Map.Entry<String, List<String>> e : sequences.entrySet()) {
-            System.out.printf("%s\t%s\n", e.getKey(), Joiner.on(",").join(e.getValue()));
-        }
-        */
-
-        reader.close();
+        });
 
-        return sequences;
+        nodes = new NodeTable(trees[0], trees[1], seqs);
+        sequenceCount = seqs.size();
+        siteCount = seqs.getSiteCount();
     }
 }
@@ -0,0 +1,177 @@
+package treesub.ancestral;
+
+import pal.tree.Tree;
+import pal.tree.TreeTool;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Reads the trees and the extant and reconstructed sequences from a PAML 'rst' file in a single
+ * pass. The file is read through a FileChannel into a large direct buffer and scanned line by line.
+ * Trees and sequences are handed to a Handler as soon as they have been read, and reading stops
+ * as soon as both sections have been seen, so we never touch the (large) tail of the file.
+ */
+public class RSTReader {
+    private static final String TREES_MARKER = "Ancestral reconstruction by";
+    private static final String SEQUENCES_MARKER = "List of extant and reconstructed sequences";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final String file;
+
+    public RSTReader(String file) {
+        this.file = file;
+    }
+
+    public interface Handler {
+        /**
+         * @param index 0 for the tree with the true branch lengths, 1 for the tree with the labelled nodes
+         */
+        void tree(int index, Tree tree);
+
+        /**
+         * @param key the sequence name, or "node#n" for a reconstructed ancestral node
+         * @param sequence the nucleotide sequence with whitespace removed. The same instance is reused for
+         *                 each call, so copy anything you need to keep.
+         */
+        void sequence(String key, CharSequence sequence);
+    }
+
+    public void read(Handler handler) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        FileChannel channel = in.getChannel();
+
+        try {
+            LineReader reader = new LineReader(channel);
+            StringBuilder line = new StringBuilder();
+            StringBuilder sequence = new StringBuilder();
+
+            boolean inTrees = false, treesDone = false, sequencesDone = false;
+            int treeLines = 0;
+
+            while (!(treesDone && sequencesDone) && reader.readLine(line)) {
+                if (inTrees) {
+                    if (line.length() > 0 && line.charAt(0) == '(') {
+                        // The first tree has the true branch lengths. The third tree has the branches labeled
+                        if (treeLines == 0) handler.tree(0, TreeTool.readTree(new StringReader(line.toString())));
+                        if (treeLines == 2) {
+                            handler.tree(1, TreeTool.readTree(new StringReader(line.toString())));
+                            inTrees = false;
+                            treesDone = true;
+                        }
+                        treeLines++;
+                    }
+                } else if (!treesDone && startsWith(line, TREES_MARKER)) {
+                    inTrees = true;
+                } else if (!sequencesDone && startsWith(line, SEQUENCES_MARKER)) {
+                    reader.readLine(line); // Skip blank line
+                    reader.readLine(line); // Skip header
+                    reader.readLine(line); // Skip blank line
+
+                    // Until we reach the end of the sequences
+                    while (reader.readLine(line) && !isBlank(line)) {
+                        handler.sequence(readSequence(line, sequence), sequence);
+                    }
+                    sequencesDone = true;
+                }
+            }
+
+            if (!treesDone) throw new IOException("Could not find the reconstructed trees in '" + file + "'");
+            if (!sequencesDone) throw new IOException("Could not find the reconstructed sequences in '" + file + "'");
+        } finally {
+            channel.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Splits a line of the sequence list into its key and sequence. Lines for ancestral nodes look like
+     * "node #12   ATG AAA ..." and lines for extant sequences look like "seq_1   ATG AAA ...".
+     */
+    private String readSequence(StringBuilder line, StringBuilder sequence) {
+        int pos = skipWhitespace(line, 0);
+        int end = skipToken(line, pos);
+        String key = line.substring(pos, end);
+
+        if (key.equals("node")) {
+            // This is a reconstructed sequence of ancestral node
+            pos = skipWhitespace(line, end);
+            end = skipToken(line, pos);
+            key = "node" + line.substring(pos, end);
+        }
+
+        // Everything else on the line is sequence
+        sequence.setLength(0);
+        for (int i = end; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (!Character.isWhitespace(c)) sequence.append(c);
+        }
+
+        return key;
+    }
+
+    private static int skipWhitespace(CharSequence s, int pos) {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static int skipToken(CharSequence s, int pos) {
+        while (pos < s.length() && !Character.isWhitespace(s.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static boolean startsWith(CharSequence s, String prefix) {
+        if (s.length() < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(CharSequence s) {
+        return skipWhitespace(s, 0) == s.length();
+    }
+
+    /**
+     * Reads US-ASCII lines from a channel, reusing the caller's StringBuilder for each line.
+     */
+    private static class LineReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private boolean eof = false;
+
+        LineReader(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip(); // start empty
+        }
+
+        boolean readLine(StringBuilder line) throws IOException {
+            line.setLength(0);
+            boolean readAnything = false;
+
+            while (true) {
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    readAnything = true;
+                    if (b == '\n') return true;
+                    if (b != '\r') line.append((char) (b & 0xff));
+                }
+
+                if (eof || !fill()) return readAnything;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n == -1) eof = true;
+            return n > 0;
+        }
+    }
+}
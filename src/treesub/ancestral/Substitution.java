@@ -2,6 +2,8 @@ package treesub.ancestral;
 
 import com.google.common.base.Predicate;
 
+import java.io.IOException;
+
 /**
  * @author tamuri@ebi.ac.uk
  *
@@ -28,6 +30,13 @@ public class Substitution {
         return String.format("%s%s%s", aaFrom, site, aaTo);
     }
 
+    /**
+     * Writes the same as toString (e.g. K108Q) without formatting a String first
+     */
+    public void appendTo(Appendable out) throws IOException {
+        out.append(aaFrom).append(Integer.toString(site)).append(aaTo);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,209 @@
+package treesub.ancestral;
+
+import com.google.common.collect.Lists;
+import pal.tree.Node;
+import pal.tree.Tree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * A read-only index of the substitutions found by ParseRST, for answering many queries such as "which
+ * branches changed site 484?" or "which non-synonymous changes are on branch 37?" without scanning every
+ * branch. Branches are the numbers written in the NUMBER attribute and substitutions.tsv; sites start at 1.
+ *
+ * The indexes are in compressed sparse row form: the substitutions are stored branch by branch, with the
+ * branches in pre-order so the branches of a clade (and their substitutions) are a contiguous range, and
+ * each site has a range of the substitutions at that site. The index is safe to query from many threads.
+ */
+public class SubstitutionIndex {
+    private final int siteCount;
+
+    // Branch number -> position of the branch in pre-order (the root is at position 0), or -1 if there is
+    // no such branch; and position -> branch number and position after its last descendant
+    private final int[] positions;
+    private final int[] branches;
+    private final int[] cladeEnds;
+
+    // Position -> first substitution on that branch (length positions + 1), and the substitutions' rows in
+    // the table
+    private final int[] branchStarts;
+    private final SubstitutionTable table;
+    private final int[] rows;
+    private final int[] substitutionBranches;
+    private final boolean[] nonSynonymous;
+
+    // Site -> first entry in siteSubstitutions (length sites + 2, as sites start at 1)
+    private final int[] siteStarts;
+    private final int[] siteSubstitutions;
+
+    SubstitutionIndex(ParseRST p, int siteCount) {
+        Tree tree = p.getTree();
+        this.siteCount = siteCount;
+        this.table = p.getSubstitutionTable();
+
+        // Branches in pre-order, left to right, with an explicit stack as the tree can be very deep
+        int nodeCount = tree.getExternalNodeCount() + tree.getInternalNodeCount();
+        List<Node> preOrder = Lists.newArrayListWithCapacity(nodeCount);
+        Deque<Node> pending = new ArrayDeque<Node>();
+        pending.push(tree.getRoot());
+        while (!pending.isEmpty()) {
+            Node n = pending.pop();
+            preOrder.add(n);
+            for (int i = n.getChildCount() - 1; i >= 0; i--) pending.push(n.getChild(i));
+        }
+
+        positions = new int[nodeCount];
+        Arrays.fill(positions, -1);
+        branches = new int[nodeCount];
+        cladeEnds = new int[nodeCount];
+        int[] parents = new int[nodeCount];
+
+        for (int i = 0; i < preOrder.size(); i++) {
+            Node n = preOrder.get(i);
+            branches[i] = p.getBranchNumber(n);
+            positions[branches[i]] = i;
+            parents[i] = n.isRoot() ? -1 : positions[p.getBranchNumber(n.getParent())];
+        }
+
+        // A clade ends where the last clade below it ends; children come after their parent in pre-order
+        for (int i = preOrder.size() - 1; i >= 0; i--) {
+            if (cladeEnds[i] == 0) cladeEnds[i] = i + 1;
+            if (parents[i] != -1) cladeEnds[parents[i]] = Math.max(cladeEnds[parents[i]], cladeEnds[i]);
+        }
+
+        // Branch -> substitutions
+        branchStarts = new int[preOrder.size() + 1];
+        for (int i = 0; i < preOrder.size(); i++) {
+            branchStarts[i + 1] = branchStarts[i] + table.size(branches[i]);
+        }
+
+        int count = branchStarts[preOrder.size()];
+        rows = new int[count];
+        substitutionBranches = new int[count];
+        nonSynonymous = new boolean[count];
+        int[] siteCounts = new int[siteCount + 2];
+
+        for (int i = 0; i < preOrder.size(); i++) {
+            int j = branchStarts[i];
+            for (int row = table.getStart(branches[i]); row < table.getEnd(branches[i]); row++) {
+                rows[j] = row;
+                substitutionBranches[j] = branches[i];
+                nonSynonymous[j] = !table.isSynonymous(row);
+                siteCounts[table.getSite(row)]++;
+                j++;
+            }
+        }
+
+        // Site -> substitutions, which are added in pre-order of their branches
+        siteStarts = new int[siteCount + 2];
+        for (int site = 1; site <= siteCount; site++) siteStarts[site + 1] = siteStarts[site] + siteCounts[site];
+        siteSubstitutions = new int[count];
+        int[] next = Arrays.copyOf(siteStarts, siteStarts.length);
+        for (int j = 0; j < count; j++) siteSubstitutions[next[table.getSite(rows[j])]++] = j;
+    }
+
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    public int getSubstitutionCount() {
+        return rows.length;
+    }
+
+    /**
+     * @return the branches with a substitution at the site, in order of branch number
+     */
+    public int[] getBranches(int site, boolean nonSynonymousOnly) {
+        if (site < 1 || site > siteCount) return new int[0];
+
+        int[] found = new int[siteStarts[site + 1] - siteStarts[site]];
+        int n = 0;
+        for (int i = siteStarts[site]; i < siteStarts[site + 1]; i++) {
+            int j = siteSubstitutions[i];
+            if (!nonSynonymousOnly || nonSynonymous[j]) found[n++] = substitutionBranches[j];
+        }
+
+        found = Arrays.copyOf(found, n);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * @return the number of branches with a substitution at the site
+     */
+    public int getBranchCount(int site, boolean nonSynonymousOnly) {
+        if (site < 1 || site > siteCount) return 0;
+        if (!nonSynonymousOnly) return siteStarts[site + 1] - siteStarts[site];
+
+        int n = 0;
+        for (int i = siteStarts[site]; i < siteStarts[site + 1]; i++) {
+            if (nonSynonymous[siteSubstitutions[i]]) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the substitutions on the branch, in order of site
+     */
+    public List<Substitution> getSubstitutions(int branch, boolean nonSynonymousOnly) {
+        int position = getPosition(branch);
+        return collect(branchStarts[position], branchStarts[position + 1], nonSynonymousOnly);
+    }
+
+    public int getSubstitutionCount(int branch, boolean nonSynonymousOnly) {
+        int position = getPosition(branch);
+        return count(branchStarts[position], branchStarts[position + 1], nonSynonymousOnly);
+    }
+
+    /**
+     * @return the branches in the clade below the branch (not including the branch itself), in pre-order
+     */
+    public int[] getCladeBranches(int branch) {
+        int position = getPosition(branch);
+        return Arrays.copyOfRange(branches, position + 1, cladeEnds[position]);
+    }
+
+    /**
+     * @return the substitutions on the branches in the clade below the branch (not including the branch
+     *         itself), branch by branch in pre-order
+     */
+    public List<Substitution> getCladeSubstitutions(int branch, boolean nonSynonymousOnly) {
+        int position = getPosition(branch);
+        return collect(branchStarts[position + 1], branchStarts[cladeEnds[position]], nonSynonymousOnly);
+    }
+
+    public int getCladeSubstitutionCount(int branch, boolean nonSynonymousOnly) {
+        int position = getPosition(branch);
+        return count(branchStarts[position + 1], branchStarts[cladeEnds[position]], nonSynonymousOnly);
+    }
+
+    private int getPosition(int branch) {
+        if (branch < 0 || branch >= positions.length || positions[branch] == -1) {
+            throw new IllegalArgumentException("There is no branch " + branch);
+        }
+        return positions[branch];
+    }
+
+    private List<Substitution> collect(int start, int end, boolean nonSynonymousOnly) {
+        List<Substitution> found = Lists.newArrayListWithCapacity(end - start);
+        for (int j = start; j < end; j++) {
+            if (!nonSynonymousOnly || nonSynonymous[j]) found.add(table.getSubstitution(rows[j]));
+        }
+        return found;
+    }
+
+    private int count(int start, int end, boolean nonSynonymousOnly) {
+        if (!nonSynonymousOnly) return end - start;
+
+        int n = 0;
+        for (int j = start; j < end; j++) {
+            if (nonSynonymous[j]) n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,99 @@
+package treesub.ancestral;
+
+import treesub.ChannelWriter;
+
+import java.io.IOException;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Counts of synonymous and non-synonymous substitutions at each site and on each branch, which ParseRST
+ * adds up as it finds the substitutions so they never have to be worked out again from substitutions.tsv.
+ * Sites start at 1; branches are the numbers written in the NUMBER attribute and substitutions.tsv.
+ */
+public class SubstitutionStats {
+    private final int[] siteSynonymous;
+    private final int[] siteNonSynonymous;
+    private final int[] branchSynonymous;
+    private final int[] branchNonSynonymous;
+    private final boolean[] isBranch;
+
+    SubstitutionStats(int sites, int branches) {
+        siteSynonymous = new int[sites + 1];
+        siteNonSynonymous = new int[sites + 1];
+        branchSynonymous = new int[branches];
+        branchNonSynonymous = new int[branches];
+        isBranch = new boolean[branches];
+    }
+
+    void add(SubstitutionTable substitutions, int branch) {
+        isBranch[branch] = true;
+        for (int row = substitutions.getStart(branch); row < substitutions.getEnd(branch); row++) {
+            if (substitutions.isSynonymous(row)) {
+                siteSynonymous[substitutions.getSite(row)]++;
+                branchSynonymous[branch]++;
+            } else {
+                siteNonSynonymous[substitutions.getSite(row)]++;
+                branchNonSynonymous[branch]++;
+            }
+        }
+    }
+
+    public int getSiteCount() {
+        return siteSynonymous.length - 1;
+    }
+
+    /**
+     * @return the number of branches where the site changed, which is the number of substitutions at the site
+     */
+    public int getSiteSubstitutions(int site) {
+        return siteSynonymous[site] + siteNonSynonymous[site];
+    }
+
+    public int getSiteNonSynonymous(int site) {
+        return siteNonSynonymous[site];
+    }
+
+    public int getBranchSubstitutions(int branch) {
+        return branchSynonymous[branch] + branchNonSynonymous[branch];
+    }
+
+    public int getBranchNonSynonymous(int branch) {
+        return branchNonSynonymous[branch];
+    }
+
+    /**
+     * Writes a row for every site, with a '*' in the last column if the site changed on more than one branch
+     */
+    void writeSites(String file) throws IOException {
+        ChannelWriter out = new ChannelWriter(file);
+        out.write("site\tsubstitutions\tsynonymous\tnon_synonymous\trepeated\n");
+        for (int site = 1; site < siteSynonymous.length; site++) {
+            int total = siteSynonymous[site] + siteNonSynonymous[site];
+            out.writeInt(site).append('\t')
+                    .writeInt(total).append('\t')
+                    .writeInt(siteSynonymous[site]).append('\t')
+                    .writeInt(siteNonSynonymous[site]).append('\t');
+            if (total > 1) out.write('*');
+            out.write('\n');
+        }
+        out.close();
+    }
+
+    /**
+     * @param names the name of each branch (REALNAME in the tree), by branch number
+     */
+    void writeBranches(String file, String[] names) throws IOException {
+        ChannelWriter out = new ChannelWriter(file);
+        out.write("branch\tname\tsubstitutions\tsynonymous\tnon_synonymous\n");
+        for (int branch = 0; branch < isBranch.length; branch++) {
+            if (!isBranch[branch]) continue; // the root
+            out.writeInt(branch).append('\t')
+                    .append(names[branch]).append('\t')
+                    .writeInt(branchSynonymous[branch] + branchNonSynonymous[branch]).append('\t')
+                    .writeInt(branchSynonymous[branch]).append('\t')
+                    .writeInt(branchNonSynonymous[branch]).append('\n');
+        }
+        out.close();
+    }
+}
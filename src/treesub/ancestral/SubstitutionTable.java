@@ -0,0 +1,285 @@
+package treesub.ancestral;
+
+import com.google.common.base.Predicate;
+import treesub.Utils;
+import treesub.tree.BranchSubstitutions;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * All the substitutions found by ParseRST, in parallel arrays (one for each column) rather than as a
+ * Substitution object for every change: branch, site, the codons as codon indexes (see
+ * Utils.getCodonIndex, whose Strings are cached by Utils.getCodonTLA) and the amino acids as bytes. Rows
+ * are in order of branch number, and then site, so the substitutions on a branch are a range of rows.
+ *
+ * Rows are read through a Cursor, which is moved from row to row rather than made for each one:
+ *
+ *   SubstitutionTable.Cursor c = table.cursor(branch);
+ *   while (c.next()) {
+ *       ... c.getSite(), c.getAminoAcidTo() ...
+ *   }
+ */
+public class SubstitutionTable implements BranchSubstitutions {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int size = 0;
+    private int[] branches = new int[INITIAL_CAPACITY];
+    private int[] sites = new int[INITIAL_CAPACITY];
+    private short[] codonsFrom = new short[INITIAL_CAPACITY];
+    private short[] codonsTo = new short[INITIAL_CAPACITY];
+    private byte[] aminoAcidsFrom = new byte[INITIAL_CAPACITY];
+    private byte[] aminoAcidsTo = new byte[INITIAL_CAPACITY];
+
+    // Branch -> first row on that branch (length branches + 1), set by index()
+    private int[] branchStarts;
+
+    /**
+     * Same as Substitution.isSynSubPredicate, for rows of the table
+     */
+    public static final Predicate<Cursor> IS_SYNONYMOUS = new Predicate<Cursor>() {
+        public boolean apply(Cursor cursor) {
+            return cursor.isSynonymous();
+        }
+    };
+
+    /**
+     * Adds a row. Rows must be added in order of branch number (see index()).
+     *
+     * @param site the site, numbered from 1
+     */
+    void add(int branch, int site, int codonFrom, int codonTo) {
+        if (size == branches.length) grow(size + 1);
+        branches[size] = branch;
+        sites[size] = site;
+        codonsFrom[size] = (short) codonFrom;
+        codonsTo[size] = (short) codonTo;
+        aminoAcidsFrom[size] = (byte) Utils.getAminoAcidChar(codonFrom);
+        aminoAcidsTo[size] = (byte) Utils.getAminoAcidChar(codonTo);
+        size++;
+    }
+
+    /**
+     * Adds all the rows of another table, which must be for later branches than the rows of this one
+     */
+    void addAll(SubstitutionTable other) {
+        if (size + other.size > branches.length) grow(size + other.size);
+        System.arraycopy(other.branches, 0, branches, size, other.size);
+        System.arraycopy(other.sites, 0, sites, size, other.size);
+        System.arraycopy(other.codonsFrom, 0, codonsFrom, size, other.size);
+        System.arraycopy(other.codonsTo, 0, codonsTo, size, other.size);
+        System.arraycopy(other.aminoAcidsFrom, 0, aminoAcidsFrom, size, other.size);
+        System.arraycopy(other.aminoAcidsTo, 0, aminoAcidsTo, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Finds where the rows of each branch start, once all the rows have been added
+     *
+     * @param branchCount the number of branch numbers (nodes in the tree)
+     */
+    void index(int branchCount) {
+        branchStarts = new int[branchCount + 1];
+        int row = 0;
+        for (int b = 0; b < branchCount; b++) {
+            branchStarts[b] = row;
+            while (row < size && branches[row] == b) row++;
+        }
+        if (row != size) throw new IllegalStateException("Substitutions were not added in order of branch number");
+        branchStarts[branchCount] = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of substitutions on the branch
+     */
+    public int size(int branch) {
+        return branchStarts[branch + 1] - branchStarts[branch];
+    }
+
+    public Cursor cursor() {
+        return new Cursor(0, size);
+    }
+
+    public Cursor cursor(int branch) {
+        return new Cursor(branchStarts[branch], branchStarts[branch + 1]);
+    }
+
+    /**
+     * @return the number of substitutions on the branch for which the predicate is true
+     */
+    public int count(int branch, Predicate<Cursor> predicate) {
+        Cursor c = cursor(branch);
+        int n = 0;
+        while (c.next()) {
+            if (predicate.apply(c)) n++;
+        }
+        return n;
+    }
+
+    public boolean hasNonSynonymous(int branch) {
+        for (int row = branchStarts[branch]; row < branchStarts[branch + 1]; row++) {
+            if (aminoAcidsFrom[row] != aminoAcidsTo[row]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the substitutions on the branch in the same format as List.toString(), e.g. [K108Q, P237L]
+     */
+    public void appendSubstitutions(Appendable out, int branch, boolean nonSynonymousOnly) throws IOException {
+        out.append('[');
+        boolean first = true;
+        for (int row = branchStarts[branch]; row < branchStarts[branch + 1]; row++) {
+            if (nonSynonymousOnly && aminoAcidsFrom[row] == aminoAcidsTo[row]) continue;
+            if (!first) out.append(", ");
+            appendTo(out, row);
+            first = false;
+        }
+        out.append(']');
+    }
+
+    // Rows by number, for the classes in this package that go through them in their own order
+
+    int getStart(int branch) {
+        return branchStarts[branch];
+    }
+
+    int getEnd(int branch) {
+        return branchStarts[branch + 1];
+    }
+
+    int getBranch(int row) {
+        return branches[row];
+    }
+
+    int getSite(int row) {
+        return sites[row];
+    }
+
+    int getCodonFromIndex(int row) {
+        return codonsFrom[row];
+    }
+
+    int getCodonToIndex(int row) {
+        return codonsTo[row];
+    }
+
+    char getAminoAcidFrom(int row) {
+        return (char) aminoAcidsFrom[row];
+    }
+
+    char getAminoAcidTo(int row) {
+        return (char) aminoAcidsTo[row];
+    }
+
+    boolean isSynonymous(int row) {
+        return aminoAcidsFrom[row] == aminoAcidsTo[row];
+    }
+
+    /**
+     * @return the row as a Substitution, for callers that want to keep it
+     */
+    Substitution getSubstitution(int row) {
+        return new Substitution(sites[row], Utils.getCodonTLA(codonsFrom[row]), Utils.getCodonTLA(codonsTo[row]),
+                (char) aminoAcidsFrom[row], (char) aminoAcidsTo[row]);
+    }
+
+    // e.g. K108Q, as Substitution.appendTo
+    private void appendTo(Appendable out, int row) throws IOException {
+        out.append((char) aminoAcidsFrom[row]).append(Integer.toString(sites[row])).append((char) aminoAcidsTo[row]);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, branches.length * 2);
+        branches = Arrays.copyOf(branches, capacity);
+        sites = Arrays.copyOf(sites, capacity);
+        codonsFrom = Arrays.copyOf(codonsFrom, capacity);
+        codonsTo = Arrays.copyOf(codonsTo, capacity);
+        aminoAcidsFrom = Arrays.copyOf(aminoAcidsFrom, capacity);
+        aminoAcidsTo = Arrays.copyOf(aminoAcidsTo, capacity);
+    }
+
+    /**
+     * A view of one row of the table at a time, which next() moves along a range of rows
+     */
+    public final class Cursor {
+        private int row;
+        private int end;
+
+        private Cursor(int start, int end) {
+            this.row = start - 1;
+            this.end = end;
+        }
+
+        /**
+         * Moves to the next row
+         *
+         * @return false if there are no more rows in the range
+         */
+        public boolean next() {
+            return ++row < end;
+        }
+
+        /**
+         * Moves the cursor to just before the first substitution on the branch, so it can be used again
+         */
+        public Cursor moveTo(int branch) {
+            row = branchStarts[branch] - 1;
+            end = branchStarts[branch + 1];
+            return this;
+        }
+
+        public int getBranch() {
+            return branches[row];
+        }
+
+        public int getSite() {
+            return sites[row];
+        }
+
+        public int getCodonFromIndex() {
+            return codonsFrom[row];
+        }
+
+        public int getCodonToIndex() {
+            return codonsTo[row];
+        }
+
+        public String getCodonFrom() {
+            return Utils.getCodonTLA(codonsFrom[row]);
+        }
+
+        public String getCodonTo() {
+            return Utils.getCodonTLA(codonsTo[row]);
+        }
+
+        public char getAminoAcidFrom() {
+            return (char) aminoAcidsFrom[row];
+        }
+
+        public char getAminoAcidTo() {
+            return (char) aminoAcidsTo[row];
+        }
+
+        public boolean isSynonymous() {
+            return aminoAcidsFrom[row] == aminoAcidsTo[row];
+        }
+
+        /**
+         * Writes the substitution in the same format as Substitution.toString, e.g. K108Q
+         */
+        public void appendTo(Appendable out) throws IOException {
+            SubstitutionTable.this.appendTo(out, row);
+        }
+
+        public Substitution toSubstitution() {
+            return getSubstitution(row);
+        }
+    }
+}
@@ -1,20 +1,15 @@
 package treesub.gui;
 
-import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Lists;
-import com.google.common.io.Files;
-import com.google.common.io.LineProcessor;
-import org.apache.commons.io.FileUtils;
 import treesub.Constants;
-import treesub.alignment.FASTAConverter;
 import treesub.ancestral.ParseRST;
-import treesub.tree.TreeRerooter;
+import treesub.pipeline.Analysis;
+import treesub.pipeline.LogSink;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.DefaultCaret;
+import javax.swing.text.Element;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -45,6 +40,10 @@ public class AnnotatorGUI {
 
     private Properties properties = new Properties();
 
+    // Lines of RAxML and PAML output shown while an analysis runs, and how often they are updated
+    private static final int MAX_LOG_LINES = 5000;
+    private static final int LOG_REFRESH_MILLIS = 250;
+
     public AnnotatorGUI() {
         try {
             properties.load(new FileInputStream(Constants.PROPERTIES_FILENAME));
@@ -358,6 +357,18 @@ public class AnnotatorGUI {
         class RunWorker extends SwingWorker<String, String> {
             String workingDir;
 
+            // Everything goes to annotator.log as it happens; we show the latest lines a few times a second
+            volatile LogSink log;
+            final Timer refresh = new Timer(LOG_REFRESH_MILLIS, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    showLog();
+                }
+            });
+
+            RunWorker() {
+                refresh.start();
+            }
+
             @Override
             protected String doInBackground() throws Exception {
                 // 6 STEPS
@@ -365,118 +376,27 @@ public class AnnotatorGUI {
                 long start = System.currentTimeMillis();
                 File source = new File(alignmentPath.getText());
                 this.workingDir = source.getParent();
+                this.log = new LogSink(new File(this.workingDir + "/annotator.log"), MAX_LOG_LINES);
 
-                // STEP 1: Copy original FASTA alignment file to 'alignment' *******************************************
-                File target = new File(this.workingDir + "/alignment");
-                publish(String.format("[1/6] Copying file from '%s' to '%s'.\n", source.toString(), target.toString()));
-                // FileUtils.copyFile(source, target); - Can't use this because copies line-endings. We want native EOL.
-                final BufferedWriter tbw = Files.newWriter(target, Charsets.US_ASCII);
-                Files.readLines(source, Charsets.US_ASCII, new LineProcessor<Object>() {
-                    public boolean processLine(String s) throws IOException {
-                        tbw.write(s);
-                        tbw.newLine();
-                        return true;
-                    }
-
-                    public Object getResult() {
-                        return null;
-                    }
-                });
-                tbw.close();
-                publish("Successfully copied file.\n\n");
-
-
-                // STEP 2: Copy FASTA alignment to PHYLIP alignment ****************************************************
-                publish("[2/6] Converting FASTA file 'alignment' to PHYLIP file 'alignment.phylip'.\n");
-                String fcRaxOut = new FASTAConverter().run(this.workingDir, FASTAConverter.OUTPUT.RAXML); // RAxML, without 'GC' in header
-                new FASTAConverter().run(this.workingDir, FASTAConverter.OUTPUT.PAML); // PAML, with 'GC' in header
-                publish(fcRaxOut + "\n"); // gives some information about the alignment
-                publish("Successfully converted FASTA file.\n\n");
-
-
-                // STEP 3: Run RAxML to estimate tree topology *********************************************************
-                publish("[3/6] Running RAxML application. Output from RAxML:\n");
-
-                Process raxmlProcess;
-                List<String> raxmlOptions = Lists.newArrayList(Splitter.on(" ").split(properties.getProperty(Constants.RAXML_OPTIONS_PROPERTY)));
-                raxmlOptions.addAll(Lists.newArrayList("-s", "alignment.raxml.phylip", "-n", "RECON"));
-                raxmlOptions.add(0, raxmlPath.getText());
-
-                if (System.getProperty("os.name").startsWith("Windows")) {
-
-                    raxmlProcess = getProcessBuilder(
-                            // "c:\\cygwin\\bin\\bash.exe", "-li", "/cygdrive/c/cygwin/bin/unbuffer",
-                            // "cmd.exe", "/c", "start", "cmd.exe", "/k", "\"",
-                            raxmlPath.getText(), // RAxML executable path
-                            "-s", "alignment.raxml.phylip", "-n", "RECON", properties.getProperty(Constants.RAXML_OPTIONS_PROPERTY) // RAxML options
-                            , "\""
-                    ).start();
-                    publish("(You're running on Windows. No real-time output available!)\n");
-
-                } else if (System.getProperty("os.name").equals("Mac OS X")) {
-
-                    raxmlOptions.addAll(0, Lists.newArrayList("/usr/bin/script", "-q", "/dev/null"));
-                    raxmlProcess = getProcessBuilder(raxmlOptions.toArray(new String[raxmlOptions.size()])).start();
-
-                } else {
-
-                    // Assume linux!
-                    raxmlOptions.add(0, "/usr/bin/unbuffer");
-                    raxmlProcess = getProcessBuilder(raxmlOptions.toArray(new String[raxmlOptions.size()])).start();
-
-                }
-
-                publishInputStream(raxmlProcess.getInputStream());
-                raxmlProcess.destroy();
-
-                publish("\nSuccessfully ran RAxML.\n\n");
+                Analysis analysis = new Analysis(this.workingDir, raxmlPath.getText(),
+                        properties.getProperty(Constants.RAXML_OPTIONS_PROPERTY), pamlPath.getText(), log);
+                analysis.setRealTimeOutput(true);
 
-
-
-
-                // STEP 4: Reroot the tree from RAxML ******************************************************************
-                publish("[4/6] Rooting tree by outgroup sequence.\n");
-                TreeRerooter tr = new TreeRerooter();
-                tr.reroot(this.workingDir + "/RAxML_bestTree.RECON", this.workingDir + "/RAxML_bestTree.RECON.rooted");
-                publish("Successfully rooted the tree.\n\n");
-
-
-                // STEP 5: Run PAML to estimate branch lengths and do the ancestral reconstruction *********************
-                // Copy standard codeml.ctl to the working directory
-                // FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("codeml.ctl"), new File(this.workingDir + "/codeml.ctl"));
-                FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("/baseml.annotatorgui.ctl"), new File(this.workingDir + "/baseml.ctl"));
-                publish("[5/6] Running PAML application. Output from PAML:\n");
-                /*Process pamlProcess = getProcessBuilder("/usr/bin/script", "-q", "/dev/null",
-                            pamlPath.getText() // PAML executable path
-                            ).start();*/
-
-                Process pamlProcess;
-
-                if (System.getProperty("os.name").startsWith("Windows")) {
-                    pamlProcess = getProcessBuilder(pamlPath.getText()).start();
-                    publish("(You're running on Windows. No real-time output available!)\n");
-                } else if (System.getProperty("os.name").equals("Mac OS X")) {
-                    pamlProcess = getProcessBuilder("/usr/bin/script", "-q", "/dev/null", pamlPath.getText()).start();
-                } else {
-                    pamlProcess = getProcessBuilder("/usr/bin/unbuffer", pamlPath.getText()).start();
+                try {
+                    analysis.copyAlignment(source);
+                    analysis.convertAlignment();
+                    analysis.runRAxML();
+                    analysis.rerootTree();
+                    analysis.runPAML();
+                    analysis.parseResults();
+                } finally {
+                    analysis.finish();
                 }
 
-                publishInputStream(pamlProcess.getInputStream());
-                pamlProcess.destroy();
-                publish("\nSuccessfully ran PAML.\n\n");
-
-
-                // STEP 6: Parse PAML results for tree and ancestral states and write annotated tree *******************
-                publish("[6/6] Parsing PAML results and building tree for substitutions.\n");
-                ParseRST pp = new ParseRST();
-                pp.run(this.workingDir);
-                publish("Succesfully parsed PAML results.\n\n");
-
-
                 // FINISHED!
 
                 long elapsed = System.currentTimeMillis() - start;
-                publish(String.format("Total running time: %dm %ds.\n\n",
+                log.publish(String.format("Total running time: %dm %ds.\n\n",
                         TimeUnit.MILLISECONDS.toMinutes(elapsed),
                         TimeUnit.MILLISECONDS.toSeconds(elapsed) -
                                 TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(elapsed))
@@ -485,44 +405,32 @@ public class AnnotatorGUI {
                 return null;
             }
 
-            private ProcessBuilder getProcessBuilder(String... args) {
-                ProcessBuilder builder = new ProcessBuilder(args);
-                builder.directory(new File(this.workingDir));
-                builder.redirectErrorStream(true);
-                return builder;
-            }
-
-            private void publishInputStream(InputStream is) throws Exception {
-                byte[] buffer = new byte[100];
-                int len;
-                while ((len = is.read(buffer, 0, buffer.length)) != -1) {
-                    publish(new String(buffer, 0, len));
-                }
-                is.close();
-            }
-
-            @Override
-            protected void process(List<String> chunks) {
+            private void showLog() {
                 // Done on the event thread
-                for (String chunk : chunks) {
-                    mainTextArea.append(chunk);
-                }
+                if (log == null) return;
+                mainTextArea.append(log.takeLines());
+
+                // Only keep the last lines in the text area
+                Element root = mainTextArea.getDocument().getDefaultRootElement();
+                int excess = root.getElementCount() - MAX_LOG_LINES;
+                if (excess > 0) mainTextArea.replaceRange("", 0, root.getElement(excess - 1).getEndOffset());
             }
 
             @Override
             protected void done() {
+                refresh.stop();
                 try {
                     super.get();
                     // save the results
-                    BufferedWriter bw = Files.newWriter(new File(this.workingDir + "/annotator.log"), Charsets.US_ASCII);
-                    bw.write(mainTextArea.getText());
-                    bw.close();
+                    log.close();
+                    showLog();
 
                     mainTextArea.append("FINISHED!\n\n");
 
                     mainTextArea.append("Wrote tree file 'substitutions.tree'\n");
                     mainTextArea.append("Wrote substitutions list file 'substitutions.tsv'\n");
                     mainTextArea.append("Wrote this output to 'annotator.log'\n");
+                    mainTextArea.append("Wrote the time taken by each step to '" + Constants.RUN_REPORT_FILE + "'\n");
 
                     runButton.setText("RUN");
                     recurseSetEnabled(North, true);
@@ -533,7 +441,18 @@ public class AnnotatorGUI {
                     e.getCause().printStackTrace();
                     String msg = String.format("ERROR: %s\n",
                             e.getCause().toString());
-                    process(Lists.newArrayList(msg, e.getCause().getMessage()));
+                    if (log != null) {
+                        log.publish(msg);
+                        try {
+                            log.close();
+                        } catch (IOException ioe) {
+                            ioe.printStackTrace();
+                        }
+                        showLog();
+                    } else {
+                        mainTextArea.append(msg);
+                    }
+                    mainTextArea.append(e.getCause().getMessage());
                 }
 
             }
@@ -0,0 +1,486 @@
+package treesub.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import treesub.Constants;
+import treesub.alignment.FASTAConverter;
+import treesub.ancestral.ParseRST;
+import treesub.tree.TreeRerooter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The six steps of the treesub analysis for one working directory, without any user interface:
+ * copy the FASTA alignment, convert it to PHYLIP, run RAxML, reroot the tree, run PAML (baseml) and
+ * parse the PAML results. Progress messages and the output of RAxML and PAML are sent to a Log.
+ * Converting the alignment, RAxML and PAML are skipped if their inputs and options have not changed since
+ * they were last run in the working directory (see StageCache).
+ * Each step is measured, and a report written to 'run_report.json' (see RunMetrics).
+ * The steps must be run in order, but each can be called on its own, so that the steps of different
+ * analyses can be interleaved (see PipelineRunner).
+ */
+public class Analysis {
+    private final String workingDir;
+    private final String raxmlPath;
+    private final String raxmlOptions;
+    private final String pamlPath;
+    private final Log log;
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    // The files read and written by each stage
+    private static final List<String> CONVERT_OUTPUTS = Lists.newArrayList("alignment", Constants.ALIGNMENT_NAMES, "alignment.raxml.phylip", "alignment.paml.phylip");
+    private static final List<String> RAXML_INPUTS = Lists.newArrayList("alignment.raxml.phylip");
+    private static final List<String> RAXML_OUTPUTS = Lists.newArrayList("RAxML_bestTree.RECON");
+    private static final List<String> REROOT_INPUTS = RAXML_OUTPUTS;
+    private static final List<String> REROOT_OUTPUTS = Lists.newArrayList("RAxML_bestTree.RECON.rooted");
+    private static final List<String> PAML_INPUTS = Lists.newArrayList("baseml.ctl", "alignment.paml.phylip", "RAxML_bestTree.RECON.rooted");
+    private static final List<String> PAML_OUTPUTS = Lists.newArrayList(Constants.PAML_RECONSTRUCTION_FILE, "pamlout");
+    private static final List<String> PARSE_INPUTS = Lists.newArrayList(Constants.ALIGNMENT_NAMES, Constants.PAML_RECONSTRUCTION_FILE);
+    private static final List<String> PARSE_OUTPUTS = Lists.newArrayList("substitutions.tree", "substitutions.tsv", "site_summary.tsv",
+            "branch_summary.tsv", "substitutions.bin");
+
+    // Time, CPU, I/O and memory of each stage (see RunMetrics), and the stage that is running
+    private final RunMetrics metrics;
+    private RunMetrics.Stage stage;
+
+    // The FASTA file to copy to 'alignment' in step 2, if any
+    private File source;
+
+    // Run RAxML and PAML through a pseudo-terminal so their output is not buffered (for the GUI)
+    private boolean realTimeOutput = false;
+
+    private int parseThreads = Runtime.getRuntime().availableProcessors();
+    private boolean binaryOutput = false;
+
+    // Processors that the RAxML step can use, to run several tree searches at once. The split (and so the
+    // tree found) depends on this, so it is only done when asked for
+    private int raxmlProcessors = 1;
+
+    // Skip the stages whose inputs and options have not changed since they were last run in this directory
+    private boolean useStageCache = true;
+    private StageCache stageCache;
+
+    public interface Log {
+        void publish(String s);
+    }
+
+    public Analysis(String workingDir, String raxmlPath, String raxmlOptions, String pamlPath, Log log) {
+        this.workingDir = workingDir;
+        this.raxmlPath = raxmlPath;
+        this.raxmlOptions = raxmlOptions;
+        this.pamlPath = pamlPath;
+        this.log = log;
+        this.metrics = new RunMetrics(workingDir);
+        this.metrics.register();
+    }
+
+    public void setRealTimeOutput(boolean realTimeOutput) {
+        this.realTimeOutput = realTimeOutput;
+    }
+
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    /**
+     * Also write the substitutions to 'substitutions.bin' (see treesub.ancestral.BinarySubstitutionReader)
+     */
+    public void setBinaryOutput(boolean binaryOutput) {
+        this.binaryOutput = binaryOutput;
+    }
+
+    /**
+     * Split the RAxML tree searches over several processes, using up to this many processors (see RAxMLSplit).
+     * The default, 1, runs a single RAxML process with the options as given.
+     */
+    public void setRAxMLProcessors(int raxmlProcessors) {
+        this.raxmlProcessors = raxmlProcessors;
+    }
+
+    public void setUseStageCache(boolean useStageCache) {
+        this.useStageCache = useStageCache;
+    }
+
+    public String getWorkingDir() {
+        return workingDir;
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Call once the analysis has finished (or failed). The metrics stay in run_report.json but are no longer
+     * visible through JMX.
+     */
+    public void finish() {
+        metrics.unregister();
+    }
+
+    // STEP 1: Copy original FASTA alignment file to 'alignment' *******************************************
+    // The copy is made in step 2, while the alignment is read for conversion, so it is only read once
+    public void copyAlignment(File source) throws Exception {
+        startStage("copy", false);
+        try {
+            doCopyAlignment(source);
+        } finally {
+            endStage(Lists.<String>newArrayList(), Lists.<String>newArrayList());
+        }
+    }
+
+    private void doCopyAlignment(File source) throws Exception {
+        File target = new File(this.workingDir + "/alignment");
+        log.publish(String.format("[1/6] Copying file from '%s' to '%s'.\n", source.toString(), target.toString()));
+
+        if (source.getCanonicalFile().equals(target.getCanonicalFile())) {
+            log.publish("Alignment is already in place.\n\n");
+            this.source = null;
+            return;
+        }
+
+        // Can't copy the file as it is, because that copies line-endings. We want native EOL.
+        this.source = source;
+        log.publish("File will be copied, with native line endings, as it is converted.\n\n");
+    }
+
+    // STEP 2: Copy FASTA alignment to PHYLIP alignment ****************************************************
+    public void convertAlignment() throws Exception {
+        startStage("convert", false);
+        try {
+            doConvertAlignment();
+        } finally {
+            endStage(getConvertInputs(), CONVERT_OUTPUTS);
+        }
+    }
+
+    private void doConvertAlignment() throws Exception {
+        log.publish("[2/6] Converting FASTA file 'alignment' to PHYLIP file 'alignment.phylip'.\n");
+
+        List<String> outputs = CONVERT_OUTPUTS;
+        String key = getStageKey(Lists.<String>newArrayList(), getConvertInputs());
+        if (isUpToDate("convert", key, outputs)) {
+            log.publish("Alignment has not changed since the last run. Using existing PHYLIP files.\n\n");
+            this.source = null;
+            return;
+        }
+
+        // RAxML (without 'GC' in header) and PAML (with 'GC' in header) PHYLIP files, in one pass
+        String fcRaxOut = new FASTAConverter().run(this.workingDir, this.source, FASTAConverter.OUTPUT.ALL);
+        if (this.source != null) {
+            log.publish("Successfully copied file.\n");
+            this.source = null;
+        }
+        log.publish(fcRaxOut + "\n"); // gives some information about the alignment
+        stageDone("convert", key, outputs);
+        log.publish("Successfully converted FASTA file.\n\n");
+    }
+
+    // STEP 3: Run RAxML to estimate tree topology *********************************************************
+    public void runRAxML() throws Exception {
+        startStage("raxml", true);
+        try {
+            doRunRAxML();
+        } finally {
+            endStage(RAXML_INPUTS, RAXML_OUTPUTS);
+        }
+    }
+
+    private void doRunRAxML() throws Exception {
+        List<String> outputs = RAXML_OUTPUTS;
+
+        // Split the tree searches over several RAxML processes, if asked to. The split changes the seeds, and
+        // so the tree, so it is part of the stage's key
+        RAxMLSplit split = isWindows() || raxmlProcessors < 2 ? null
+                : RAxMLSplit.plan(Lists.newArrayList(Splitter.on(" ").split(raxmlOptions)), raxmlProcessors, getAlignmentLength());
+        List<String> keyOptions = Lists.newArrayList(raxmlPath, raxmlOptions);
+        if (split != null) keyOptions.add(split.toString());
+        String key = getStageKey(keyOptions, RAXML_INPUTS);
+        if (isUpToDate("raxml", key, outputs)) {
+            log.publish("[3/6] RAxML alignment and options have not changed since the last run. Using existing tree.\n\n");
+            return;
+        }
+
+        log.publish("[3/6] Running RAxML application. Output from RAxML:\n");
+
+        // RAxML won't overwrite the output files of an earlier run
+        File[] previous = new File(this.workingDir).listFiles();
+        if (previous != null) {
+            for (File f : previous) {
+                if (f.getName().startsWith("RAxML_") && f.getName().contains(".RECON")) f.delete();
+            }
+        }
+
+        if (split != null) {
+            runRAxMLSplit(split);
+            stageDone("raxml", key, outputs);
+            log.publish("\nSuccessfully ran RAxML.\n\n");
+            return;
+        }
+
+        Process raxmlProcess;
+        List<String> options = Lists.newArrayList(Splitter.on(" ").split(raxmlOptions));
+        options.addAll(Lists.newArrayList("-s", "alignment.raxml.phylip", "-n", "RECON"));
+        options.add(0, raxmlPath);
+
+        if (isWindows()) {
+
+            raxmlProcess = getProcessBuilder(
+                    // "c:\\cygwin\\bin\\bash.exe", "-li", "/cygdrive/c/cygwin/bin/unbuffer",
+                    // "cmd.exe", "/c", "start", "cmd.exe", "/k", "\"",
+                    raxmlPath, // RAxML executable path
+                    "-s", "alignment.raxml.phylip", "-n", "RECON", raxmlOptions // RAxML options
+                    , "\""
+            ).start();
+            log.publish("(You're running on Windows. No real-time output available!)\n");
+
+        } else {
+
+            raxmlProcess = getProcessBuilder(realTime(options)).start();
+
+        }
+
+        publishInputStream(raxmlProcess.getInputStream());
+        waitFor(raxmlProcess, "RAxML");
+        stageDone("raxml", key, outputs);
+
+        log.publish("\nSuccessfully ran RAxML.\n\n");
+    }
+
+    private void runRAxMLSplit(RAxMLSplit split) throws Exception {
+        int n = split.getProcesses();
+        log.publish(String.format("Running %s RAxML processes at once, each with %s thread(s).\n", n, split.getThreads()));
+
+        Process[] processes = new Process[n];
+        Thread[] outputs = new Thread[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                List<String> options = split.getOptions(i);
+                options.addAll(Lists.newArrayList("-s", "alignment.raxml.phylip", "-n", "RECON." + i));
+                options.add(0, raxmlPath);
+
+                processes[i] = getProcessBuilder(realTime(options)).start();
+                outputs[i] = publishLines(processes[i].getInputStream(), String.format("[RAxML %s] ", i));
+            }
+
+            for (int i = 0; i < n; i++) {
+                outputs[i].join();
+                waitFor(processes[i], "RAxML " + i);
+            }
+        } finally {
+            for (Process p : processes) if (p != null) p.destroy();
+        }
+
+        // The best tree is the one with the highest likelihood
+        int best = 0;
+        double bestLikelihood = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double likelihood = RAxMLSplit.readLikelihood(new File(this.workingDir + "/RAxML_info.RECON." + i));
+            log.publish(String.format("RAxML %s: %s searches, likelihood of best tree %s\n", i, split.getSearches(i), likelihood));
+            if (likelihood > bestLikelihood) {
+                best = i;
+                bestLikelihood = likelihood;
+            }
+        }
+
+        log.publish(String.format("Using the tree from RAxML %s.\n", best));
+        Files.copy(new File(this.workingDir + "/RAxML_bestTree.RECON." + best), new File(this.workingDir + "/RAxML_bestTree.RECON"));
+    }
+
+    /**
+     * @return the number of sites in the RAxML alignment, from its PHYLIP header
+     */
+    private int getAlignmentLength() throws IOException {
+        String header = Files.readFirstLine(new File(this.workingDir + "/alignment.raxml.phylip"), Charsets.US_ASCII);
+        List<String> parts = Lists.newArrayList(Splitter.on(' ').omitEmptyStrings().split(header));
+        return Integer.parseInt(parts.get(1));
+    }
+
+    // STEP 4: Reroot the tree from RAxML ******************************************************************
+    public void rerootTree() throws Exception {
+        startStage("reroot", false);
+        try {
+            doRerootTree();
+        } finally {
+            endStage(REROOT_INPUTS, REROOT_OUTPUTS);
+        }
+    }
+
+    private void doRerootTree() throws Exception {
+        log.publish("[4/6] Rooting tree by outgroup sequence.\n");
+        TreeRerooter tr = new TreeRerooter();
+        tr.reroot(this.workingDir + "/RAxML_bestTree.RECON", this.workingDir + "/RAxML_bestTree.RECON.rooted");
+        log.publish("Successfully rooted the tree.\n\n");
+    }
+
+    // STEP 5: Run PAML to estimate branch lengths and do the ancestral reconstruction *********************
+    public void runPAML() throws Exception {
+        startStage("paml", true);
+        try {
+            doRunPAML();
+        } finally {
+            endStage(PAML_INPUTS, PAML_OUTPUTS);
+        }
+    }
+
+    private void doRunPAML() throws Exception {
+        // Copy standard baseml.ctl to the working directory
+        FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("/baseml.annotatorgui.ctl"), new File(this.workingDir + "/baseml.ctl"));
+
+        List<String> outputs = PAML_OUTPUTS;
+        String key = getStageKey(Lists.newArrayList(pamlPath), PAML_INPUTS);
+        if (isUpToDate("paml", key, outputs)) {
+            log.publish("[5/6] PAML control file, alignment and tree have not changed since the last run. Using existing results.\n\n");
+            return;
+        }
+
+        log.publish("[5/6] Running PAML application. Output from PAML:\n");
+
+        Process pamlProcess;
+
+        if (isWindows()) {
+            pamlProcess = getProcessBuilder(pamlPath).start();
+            log.publish("(You're running on Windows. No real-time output available!)\n");
+        } else {
+            pamlProcess = getProcessBuilder(realTime(Lists.newArrayList(pamlPath))).start();
+        }
+
+        publishInputStream(pamlProcess.getInputStream());
+        waitFor(pamlProcess, "PAML");
+        stageDone("paml", key, outputs);
+        log.publish("\nSuccessfully ran PAML.\n\n");
+    }
+
+    // STEP 6: Parse PAML results for tree and ancestral states and write annotated tree *******************
+    public void parseResults() throws Exception {
+        startStage("parse", false);
+        try {
+            doParseResults();
+        } finally {
+            endStage(PARSE_INPUTS, PARSE_OUTPUTS);
+        }
+    }
+
+    private void doParseResults() throws Exception {
+        log.publish("[6/6] Parsing PAML results and building tree for substitutions.\n");
+        ParseRST pp = new ParseRST();
+        pp.setParallelism(parseThreads);
+        pp.setBinaryOutput(binaryOutput);
+        pp.run(this.workingDir);
+        metrics.setParseCounts(pp.getSequenceCount(), pp.getBranchCount(), pp.getSubstitutionCount());
+        log.publish("Succesfully parsed PAML results.\n\n");
+    }
+
+    private void startStage(String name, boolean external) throws IOException {
+        stage = metrics.startStage(name, external);
+    }
+
+    private void endStage(List<String> inputs, List<String> outputs) throws Exception {
+        RunMetrics.Stage finished = stage;
+        stage = null;
+        metrics.endStage(finished, inputs, outputs);
+    }
+
+    private List<String> getConvertInputs() {
+        return Lists.newArrayList(this.source == null ? "alignment" : this.source.getAbsolutePath());
+    }
+
+    /**
+     * @return the stage cache key for these options and input files, or null if we're not using the stage cache
+     */
+    private String getStageKey(List<String> options, List<String> inputs) throws IOException {
+        if (!useStageCache) return null;
+        if (stageCache == null) stageCache = new StageCache(this.workingDir);
+        return stageCache.getKey(options, inputs);
+    }
+
+    private boolean isUpToDate(String stage, String key, List<String> outputs) throws IOException {
+        if (key == null) return false;
+        if (stageCache.isUpToDate(stage, key, outputs)) {
+            this.stage.setSkipped();
+            return true;
+        }
+        stageCache.remove(stage); // about to be run again
+        return false;
+    }
+
+    private void stageDone(String stage, String key, List<String> outputs) throws IOException {
+        if (key != null) stageCache.update(stage, key, outputs);
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").startsWith("Windows");
+    }
+
+    private String[] realTime(List<String> command) {
+        if (realTimeOutput) {
+            if (System.getProperty("os.name").equals("Mac OS X")) {
+                command.addAll(0, Lists.newArrayList("/usr/bin/script", "-q", "/dev/null"));
+            } else {
+                // Assume linux!
+                command.add(0, "/usr/bin/unbuffer");
+            }
+        }
+        return command.toArray(new String[command.size()]);
+    }
+
+    private ProcessBuilder getProcessBuilder(String... args) {
+        ProcessBuilder builder = new ProcessBuilder(args);
+        builder.directory(new File(this.workingDir));
+        builder.redirectErrorStream(true);
+        return builder;
+    }
+
+    private void publishInputStream(InputStream is) throws Exception {
+        // Publish in large chunks. read() returns as soon as there is any output, so it still appears as it is written
+        Reader reader = new InputStreamReader(is);
+        char[] buffer = new char[OUTPUT_BUFFER_SIZE];
+        int len;
+        while ((len = reader.read(buffer, 0, buffer.length)) != -1) {
+            log.publish(new String(buffer, 0, len));
+        }
+        reader.close();
+    }
+
+    /**
+     * Publishes the lines of a process's output, with a prefix, from a new thread
+     */
+    private Thread publishLines(final InputStream is, final String prefix) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        log.publish(prefix + line + "\n");
+                    }
+                    reader.close();
+                } catch (IOException e) {
+                    log.publish(prefix + e.toString() + "\n");
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void waitFor(Process process, String name) throws Exception {
+        int exitCode = process.waitFor();
+        if (stage != null) stage.setExitCode(exitCode);
+        process.destroy();
+        if (exitCode != 0) {
+            throw new RuntimeException(String.format("%s exited with code %s.", name, exitCode));
+        }
+    }
+}
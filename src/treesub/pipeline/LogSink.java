@@ -0,0 +1,101 @@
+package treesub.pipeline;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The Log for an analysis: everything is written to the log file (annotator.log) as it arrives, and only
+ * the most recent lines are kept in memory, for display. A user interface should call takeLines() every so
+ * often (e.g. from a timer) rather than being told about every message, so a chatty RAxML or PAML run
+ * cannot flood it.
+ *
+ * The file is not opened until the first message, so a sink for an analysis that is waiting its turn (e.g.
+ * in PipelineRunner) holds no file or buffer.
+ */
+public class LogSink implements Analysis.Log {
+    // A line longer than this is taken for display as it is, e.g. RAxML's progress, which ends with '\r'
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final File file;
+    private Writer out;
+    private final int maxLines;
+
+    // Complete lines not yet taken for display (at most maxLines of them), and the line being written
+    private final ArrayDeque<String> lines = new ArrayDeque<String>();
+    private final StringBuilder partial = new StringBuilder();
+    private boolean droppedLines = false;
+
+    /**
+     * @param maxLines the number of recent lines to keep for display, or 0 to keep none
+     */
+    public LogSink(File file, int maxLines) {
+        this.file = file;
+        this.maxLines = maxLines;
+    }
+
+    public synchronized void publish(String s) {
+        try {
+            if (out == null) open();
+            out.write(s);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (maxLines == 0) return;
+
+        int start = 0, end;
+        while ((end = s.indexOf('\n', start)) != -1) {
+            partial.append(s, start, end + 1);
+            addLine();
+            start = end + 1;
+        }
+        partial.append(s, start, s.length());
+        if (partial.length() > MAX_LINE_LENGTH) {
+            partial.append('\n');
+            addLine();
+        }
+    }
+
+    private void open() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.US_ASCII));
+    }
+
+    private void addLine() {
+        lines.addLast(partial.toString());
+        partial.setLength(0);
+        if (lines.size() > maxLines) {
+            lines.removeFirst();
+            droppedLines = true;
+        }
+    }
+
+    /**
+     * @return the complete lines published since the last call, or just the most recent of them if there
+     *         were more than maxLines
+     */
+    public synchronized String takeLines() {
+        StringBuilder text = new StringBuilder();
+        if (droppedLines) text.append("...\n");
+        for (String line : lines) text.append(line);
+        lines.clear();
+        droppedLines = false;
+        return text.toString();
+    }
+
+    public synchronized void flush() throws IOException {
+        if (out != null) out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) out.close();
+    }
+}
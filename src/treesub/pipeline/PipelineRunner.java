@@ -0,0 +1,257 @@
+package treesub.pipeline;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import treesub.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Runs the full analysis (see Analysis) for many alignments from the command line, without the GUI.
+ *
+ * The steps of each analysis run in order, but the analyses are pipelined: RAxML and PAML run on a pool
+ * of 'workers' threads, one external process each, while the Java steps (copying and converting the
+ * alignment, rerooting the tree and parsing the PAML results) run on their own small pool. So while one
+ * dataset is in RAxML, others can be converted, rerooted or parsed.
+ *
+ * Usage: java -cp treesub.jar treesub.pipeline.PipelineRunner [options] input...
+ *
+ * Each input is either a FASTA alignment, or a working directory that already has a FASTA file called
+ * 'alignment'. A FASTA alignment is copied to 'alignment' in a working directory of its own, next to it and
+ * named after the file without its extension (e.g. data/H3HA.fas is run in data/H3HA/, and a file with no
+ * extension, data/H3HA, in data/H3HA.run/), so alignments in the same directory don't overwrite each
+ * other's files. Two inputs with the same working directory are an error. The output of each analysis
+ * is written to 'annotator.log' in its working directory. Options default to the values saved by the GUI
+ * in 'annotator.properties':
+ *
+ *   -raxml path           RAxML executable (raxmlHPC)
+ *   -paml path            PAML baseml executable
+ *   -raxml-options "..."  RAxML options (default "-m GTRGAMMA -T 2 -# 10 -p 12345")
+ *   -workers n            number of RAxML/PAML processes to run at once (default: processors / 2)
+ *   -raxml-processors n   split each RAxML run's tree searches over this many processors (default: 1, no split)
+ *   -java-workers n       number of Java steps to run at once (default: 2)
+ *   -threads n            threads used to parse each PAML result (default: processors)
+ *   -binary               also write the substitutions in binary form (substitutions.bin)
+ *   -force                run every step, even if its inputs have not changed since the last run
+ */
+public class PipelineRunner {
+    private static final String[] STAGE_NAMES = {"Converting alignment", "Running RAxML", "Rooting tree", "Running PAML", "Parsing PAML results"};
+    private static final boolean[] EXTERNAL_STAGE = {false, true, false, true, false};
+
+    private final ExecutorService javaStages;
+    private final ExecutorService externalStages;
+    private CountDownLatch remaining;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public PipelineRunner(int workers, int javaWorkers) {
+        this.externalStages = Executors.newFixedThreadPool(workers);
+        this.javaStages = Executors.newFixedThreadPool(javaWorkers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        try {
+            properties.load(new FileInputStream(Constants.PROPERTIES_FILENAME));
+        } catch (IOException e) {
+            // Assume file not found
+        }
+
+        String raxmlPath = properties.getProperty(Constants.RAXML_PATH_PROPERTY, "raxmlHPC");
+        String pamlPath = properties.getProperty(Constants.PAML_PATH_PROPERTY, "baseml");
+        String raxmlOptions = properties.getProperty(Constants.RAXML_OPTIONS_PROPERTY, Constants.RAXML_DEFAULT_OPTIONS);
+        int processors = Runtime.getRuntime().availableProcessors();
+        int workers = Math.max(1, processors / 2);
+        int javaWorkers = 2;
+        int threads = processors;
+        int raxmlProcessors = 1;
+        boolean force = false;
+        boolean binary = false;
+
+        List<String> inputs = Lists.newArrayList();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-raxml")) {
+                raxmlPath = args[++i];
+            } else if (args[i].equals("-paml")) {
+                pamlPath = args[++i];
+            } else if (args[i].equals("-raxml-options")) {
+                raxmlOptions = args[++i];
+            } else if (args[i].equals("-workers")) {
+                workers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-raxml-processors")) {
+                raxmlProcessors = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-java-workers")) {
+                javaWorkers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-binary")) {
+                binary = true;
+            } else if (args[i].equals("-force")) {
+                force = true;
+            } else {
+                inputs.add(args[i]);
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java -cp treesub.jar treesub.pipeline.PipelineRunner [-raxml path] [-paml path] " +
+                    "[-raxml-options \"...\"] [-workers n] [-raxml-processors n] [-java-workers n] [-threads n] [-binary] [-force] alignment-or-directory...");
+            System.exit(2);
+        }
+
+        // Every input must have a working directory of its own
+        Map<String, String> workingDirs = Maps.newLinkedHashMap();
+        for (String input : inputs) {
+            String workingDir = getWorkingDir(new File(input).getAbsoluteFile()).getCanonicalPath();
+            if (workingDirs.containsKey(workingDir)) {
+                System.err.printf("'%s' and '%s' would both be run in '%s'.\n", workingDirs.get(workingDir), input, workingDir);
+                System.exit(2);
+            }
+            workingDirs.put(workingDir, input);
+        }
+
+        PipelineRunner runner = new PipelineRunner(workers, javaWorkers);
+        List<Job> jobs = Lists.newArrayList();
+        for (String input : inputs) {
+            File f = new File(input).getAbsoluteFile();
+            File source = f.isDirectory() ? null : f;
+            File dir = getWorkingDir(f);
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create directory " + dir);
+            String workingDir = dir.getPath();
+            Job job = runner.new Job(workingDir, source, raxmlPath, raxmlOptions, pamlPath, threads);
+            job.analysis.setUseStageCache(!force);
+            job.analysis.setBinaryOutput(binary);
+            job.analysis.setRAxMLProcessors(raxmlProcessors);
+            jobs.add(job);
+        }
+
+        int failed = runner.run(jobs);
+        System.out.printf("Finished %s analyses, %s failed.\n", jobs.size(), failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return the input itself if it is a directory, otherwise the directory next to the FASTA file named after
+     *         it without its extension (or with '.run' added if it has none)
+     */
+    static File getWorkingDir(File input) {
+        if (input.isDirectory()) return input;
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        name = dot > 0 ? name.substring(0, dot) : name + ".run";
+        return new File(input.getParentFile(), name);
+    }
+
+    /**
+     * Runs all the jobs to completion
+     *
+     * @return the number of jobs that failed
+     */
+    public int run(List<Job> jobs) throws InterruptedException {
+        remaining = new CountDownLatch(jobs.size());
+        for (Job job : jobs) submit(job);
+        remaining.await();
+
+        javaStages.shutdown();
+        externalStages.shutdown();
+        return failures.get();
+    }
+
+    private void submit(Job job) {
+        (EXTERNAL_STAGE[job.stage] ? externalStages : javaStages).execute(job);
+    }
+
+    /**
+     * One analysis. Each time it runs it does its next stage, then queues itself for the stage after that.
+     */
+    public class Job implements Runnable {
+        private final Analysis analysis;
+        private final File source;
+        private final LogSink log;
+        private final String name;
+        private final long start = System.currentTimeMillis();
+        private int stage = 0;
+
+        Job(String workingDir, File source, String raxmlPath, String raxmlOptions, String pamlPath, int threads) throws IOException {
+            this.source = source;
+            this.name = workingDir;
+            this.log = new LogSink(new File(workingDir + "/annotator.log"), 0);
+            this.analysis = new Analysis(workingDir, raxmlPath, raxmlOptions, pamlPath, log);
+            this.analysis.setParseThreads(threads);
+        }
+
+        public void run() {
+            System.out.printf("%s: %s\n", name, STAGE_NAMES[stage]);
+
+            try {
+                switch (stage) {
+                    case 0:
+                        if (source != null) analysis.copyAlignment(source);
+                        analysis.convertAlignment();
+                        break;
+                    case 1:
+                        analysis.runRAxML();
+                        break;
+                    case 2:
+                        analysis.rerootTree();
+                        break;
+                    case 3:
+                        analysis.runPAML();
+                        break;
+                    case 4:
+                        analysis.parseResults();
+                        break;
+                }
+                log.flush();
+            } catch (Throwable e) {
+                // Errors too (e.g. OutOfMemoryError), or the job would never be counted as finished
+                finish(e);
+                return;
+            }
+
+            if (++stage < STAGE_NAMES.length) {
+                submit(this);
+            } else {
+                finish(null);
+            }
+        }
+
+        private void finish(Throwable error) {
+            long elapsed = System.currentTimeMillis() - start;
+            if (error != null) failures.incrementAndGet();
+            try {
+                analysis.finish();
+                try {
+                    if (error != null) {
+                        log.publish(String.format("ERROR: %s\n", error.toString()));
+                    }
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                if (error != null) {
+                    System.out.printf("%s: FAILED (%s)\n", name, error.toString());
+                } else {
+                    System.out.printf("%s: Finished in %dm %ds\n", name,
+                            TimeUnit.MILLISECONDS.toMinutes(elapsed),
+                            TimeUnit.MILLISECONDS.toSeconds(elapsed) % 60);
+                }
+            } finally {
+                // Always, so run() doesn't wait forever
+                remaining.countDown();
+            }
+        }
+    }
+}
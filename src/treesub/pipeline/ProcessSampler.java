@@ -0,0 +1,169 @@
+package treesub.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Samples the memory and CPU use of the external programs (RAxML, baseml) that an analysis runs, from the
+ * Linux /proc filesystem. The processes of an analysis are the descendants of this JVM that are running
+ * in its working directory, which also picks up the real program when it is run through 'unbuffer' or
+ * 'script'. Memory is the sum over the processes of the peak resident set size the kernel records for each
+ * (VmHWM), so short spikes between samples are not missed; CPU time is the sum of the last user and system
+ * time seen for each process. Both are read while a process runs, so up to one sampling interval may be
+ * missed at the end of a process.
+ *
+ * On systems without /proc nothing is sampled, and the results are -1.
+ */
+class ProcessSampler implements Runnable {
+    private static final long INTERVAL_MILLIS = 500;
+    private static final File PROC = new File("/proc");
+
+    // Clock ticks per second used for CPU times in /proc/[pid]/stat (USER_HZ, which is 100 on Linux)
+    private static final int TICKS_PER_SECOND = 100;
+
+    private final File workingDir;
+    private final String jvmPid;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // The last peak resident set size and CPU time seen for each process
+    private final Map<String, Long> peakRssKb = Maps.newHashMap();
+    private final Map<String, Long> cpuTicks = Maps.newHashMap();
+
+    ProcessSampler(String workingDir) throws IOException {
+        this.workingDir = new File(workingDir).getCanonicalFile();
+        // Name of the runtime is "pid@hostname" (on HotSpot)
+        this.jvmPid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        this.thread = new Thread(this, "ProcessSampler " + workingDir);
+        this.thread.setDaemon(true);
+    }
+
+    static boolean isAvailable() {
+        return new File(PROC, "self/stat").exists();
+    }
+
+    void start() {
+        if (isAvailable()) thread.start();
+    }
+
+    /**
+     * Stops sampling, after taking one last sample
+     */
+    void stop() throws InterruptedException {
+        if (!thread.isAlive()) return;
+        running = false;
+        thread.interrupt();
+        thread.join();
+    }
+
+    synchronized long getPeakRssKb() {
+        if (peakRssKb.isEmpty()) return -1;
+        long kb = 0;
+        for (long k : peakRssKb.values()) kb += k;
+        return kb;
+    }
+
+    synchronized long getCpuMillis() {
+        if (cpuTicks.isEmpty()) return -1;
+        long ticks = 0;
+        for (long t : cpuTicks.values()) ticks += t;
+        return ticks * 1000 / TICKS_PER_SECOND;
+    }
+
+    public void run() {
+        while (running) {
+            sample();
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                // stop() was called
+            }
+        }
+        sample();
+    }
+
+    private void sample() {
+        // Parent of every process, so we can find the descendants of the JVM
+        Map<String, String> parents = Maps.newHashMap();
+        Map<String, String[]> stats = Maps.newHashMap();
+        File[] entries = PROC.listFiles();
+        if (entries == null) return;
+
+        for (File entry : entries) {
+            String pid = entry.getName();
+            if (!Character.isDigit(pid.charAt(0))) continue;
+            String[] stat = readStat(pid);
+            if (stat == null) continue;
+            parents.put(pid, stat[1]);
+            stats.put(pid, stat);
+        }
+
+        for (String pid : stats.keySet()) {
+            if (pid.equals(jvmPid) || !isDescendant(pid, parents) || !isInWorkingDir(pid)) continue;
+            String[] stat = stats.get(pid);
+            long hwmKb = readPeakRssKb(pid);
+            synchronized (this) {
+                long ticks = Long.parseLong(stat[11]) + Long.parseLong(stat[12]); // utime + stime
+                Long previous = cpuTicks.get(pid);
+                if (previous == null || ticks > previous) cpuTicks.put(pid, ticks);
+                previous = peakRssKb.get(pid);
+                if (previous == null || hwmKb > previous) peakRssKb.put(pid, hwmKb);
+            }
+        }
+    }
+
+    private boolean isDescendant(String pid, Map<String, String> parents) {
+        String p = parents.get(pid);
+        for (int depth = 0; p != null && depth < 32; depth++) {
+            if (p.equals(jvmPid)) return true;
+            p = parents.get(p);
+        }
+        return false;
+    }
+
+    private boolean isInWorkingDir(String pid) {
+        try {
+            return new File(PROC, pid + "/cwd").getCanonicalFile().equals(workingDir);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the fields of /proc/[pid]/stat after the command name, so [1] is the parent pid and [11], [12]
+     *         are the user and system CPU ticks; or null if the process has gone
+     */
+    private static String[] readStat(String pid) {
+        try {
+            String stat = Files.toString(new File(PROC, pid + "/stat"), Charsets.US_ASCII);
+            // The command name is in parentheses and can contain spaces
+            return stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The process's peak resident set size so far, from VmHWM in /proc/[pid]/status
+    private static long readPeakRssKb(String pid) {
+        try {
+            List<String> lines = Files.readLines(new File(PROC, pid + "/status"), Charsets.US_ASCII);
+            for (String line : lines) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException e) {
+            // Process has gone
+        }
+        return 0;
+    }
+}
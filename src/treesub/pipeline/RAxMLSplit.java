@@ -0,0 +1,145 @@
+package treesub.pipeline;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Splits the tree searches of one RAxML run (the '-#' option) over several RAxML processes run at the same
+ * time, each with its own random seed ('-p') and number of threads ('-T'). The best tree is the one with
+ * the highest final likelihood, which RAxML writes in its RAxML_info file.
+ *
+ * The number of threads for each process is chosen from the length of the alignment (RAxML recommends at
+ * least 500 alignment patterns per thread), and the number of processes from the processors given. The
+ * searches, seeds and so the tree found depend on the number of processors, so the split is only made when
+ * it is asked for (Analysis.setRAxMLProcessors) and not from the processors the machine happens to have.
+ * Only plain tree searches are split: not bootstrap ('-b', '-x') or other ('-f') runs.
+ */
+class RAxMLSplit {
+    private static final int SITES_PER_THREAD = 500;
+    private static final int DEFAULT_SEED = 12345;
+    private static final String SCORE_LINE = "Score of best tree";
+
+    private final List<String> options;
+    private final int[] searches;
+    private final int threads;
+    private final int seed;
+
+    private RAxMLSplit(List<String> options, int[] searches, int threads, int seed) {
+        this.options = options;
+        this.searches = searches;
+        this.threads = threads;
+        this.seed = seed;
+    }
+
+    /**
+     * @param options the RAxML options, without the executable, alignment ('-s') or run name ('-n')
+     * @param processors the number of processors RAxML can use
+     * @param sites the length of the alignment
+     * @return how to split the searches, or null if the run should not (or can not) be split
+     */
+    static RAxMLSplit plan(List<String> options, int processors, int sites) {
+        if (options.contains("-b") || options.contains("-x") || options.contains("-f")) return null;
+
+        int searches;
+        try {
+            searches = Integer.parseInt(getOption(options, "-#", getOption(options, "-N", "1")));
+        } catch (NumberFormatException e) {
+            return null; // e.g. "-# autoMR"
+        }
+
+        // The PTHREADS version of RAxML needs at least 2 threads; the sequential version has no '-T'
+        int threads = 1;
+        if (getOption(options, "-T", null) != null) {
+            threads = Math.max(2, Math.min(processors, sites / SITES_PER_THREAD));
+        }
+
+        int processes = Math.min(searches, processors / threads);
+        if (processes < 2) return null;
+
+        // Share the searches out between the processes
+        int[] split = new int[processes];
+        for (int i = 0; i < searches; i++) split[i % processes]++;
+
+        int seed = DEFAULT_SEED;
+        try {
+            seed = Integer.parseInt(getOption(options, "-p", String.valueOf(DEFAULT_SEED)));
+        } catch (NumberFormatException e) {
+            // Use the default
+        }
+
+        return new RAxMLSplit(options, split, threads, seed);
+    }
+
+    int getProcesses() {
+        return searches.length;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getSearches(int process) {
+        return searches[process];
+    }
+
+    /**
+     * @return the options for the given process, with its own number of searches, seed and threads
+     */
+    List<String> getOptions(int process) {
+        List<String> processOptions = Lists.newArrayList();
+        for (int i = 0; i < options.size(); i++) {
+            String option = options.get(i);
+            if (option.equals("-#") || option.equals("-N") || option.equals("-p") || option.equals("-T")) {
+                i++; // skip its value
+            } else if (option.length() > 0) {
+                processOptions.add(option);
+            }
+        }
+
+        processOptions.addAll(Lists.newArrayList("-#", String.valueOf(searches[process]), "-p", String.valueOf(seed + process)));
+        if (threads > 1) processOptions.addAll(Lists.newArrayList("-T", String.valueOf(threads)));
+        return processOptions;
+    }
+
+    /**
+     * @return the searches and seed of each process, and their threads, e.g. "-# 5,5 -p 12345 -T 2"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("-# ");
+        for (int i = 0; i < searches.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(searches[i]);
+        }
+        return sb.append(" -p ").append(seed).append(" -T ").append(threads).toString();
+    }
+
+    /**
+     * @return the final likelihood of the best tree in a RAxML_info file
+     */
+    static double readLikelihood(File info) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(info));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int pos = line.indexOf(SCORE_LINE);
+                if (pos != -1) return Double.parseDouble(line.substring(pos + SCORE_LINE.length()).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IOException(String.format("Could not find the likelihood of the best tree in '%s'.", info));
+    }
+
+    private static String getOption(List<String> options, String name, String defaultValue) {
+        int i = options.indexOf(name);
+        return i == -1 || i + 1 >= options.size() ? defaultValue : options.get(i + 1);
+    }
+}
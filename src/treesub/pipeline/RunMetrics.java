@@ -0,0 +1,278 @@
+package treesub.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import treesub.Constants;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Measures each stage of an analysis: wall time, CPU time, the size of the files it read and wrote and,
+ * for RAxML and baseml, their exit code and peak memory (see ProcessSampler). ParseRST adds the number of
+ * sequences, branches and substitutions. After every stage the measurements so far are written as JSON
+ * to 'run_report.json' in the working directory, and they can be watched through JMX while the analysis
+ * runs (as "treesub:type=Analysis,dir=...") until it is unregistered.
+ *
+ * CPU time of the Java stages is the CPU time of the whole JVM during the stage, so it includes any
+ * other analyses running at the same time (e.g. in PipelineRunner). CPU time of the RAxML and baseml
+ * stages is the CPU time of those programs.
+ */
+public class RunMetrics implements RunMetricsMBean {
+    public static class Stage {
+        private final String name;
+        private final long start = System.currentTimeMillis();
+        private final long startCpuNanos = getJvmCpuNanos();
+        private final ProcessSampler sampler;
+
+        private boolean skipped = false;
+        private boolean finished = false;
+        private long wallMillis;
+        private long cpuMillis = -1;
+        private long bytesRead;
+        private long bytesWritten;
+        private long peakRssKb = -1;
+        private Integer exitCode;
+
+        private Stage(String name, ProcessSampler sampler) {
+            this.name = name;
+            this.sampler = sampler;
+        }
+
+        /**
+         * The stage's outputs were already up to date, so it did nothing
+         */
+        public void setSkipped() {
+            this.skipped = true;
+        }
+
+        /**
+         * Several processes may be run in one stage: we keep the first exit code that wasn't 0
+         */
+        public synchronized void setExitCode(int exitCode) {
+            if (this.exitCode == null || this.exitCode == 0) this.exitCode = exitCode;
+        }
+    }
+
+    private final String workingDir;
+    private ObjectName objectName;
+    private final List<Stage> stages = Lists.newArrayList();
+    private Stage current;
+
+    private int sequences = -1;
+    private int branches = -1;
+    private int substitutions = -1;
+
+    public RunMetrics(String workingDir) {
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * Makes the metrics visible through JMX, replacing those of any earlier analysis of the same directory
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("treesub:type=Analysis,dir=" + ObjectName.quote(workingDir));
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the metrics from JMX once the analysis has finished, so the MBean server doesn't keep every
+     * analysis run by this JVM
+     */
+    public void unregister() {
+        if (objectName == null) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    /**
+     * @param external whether the stage runs external programs, whose memory and CPU use should be sampled
+     */
+    public synchronized Stage startStage(String name, boolean external) throws IOException {
+        ProcessSampler sampler = null;
+        if (external) {
+            sampler = new ProcessSampler(workingDir);
+            sampler.start();
+        }
+        current = new Stage(name, sampler);
+        stages.add(current);
+        return current;
+    }
+
+    /**
+     * @param inputs the files the stage read, in the working directory (or absolute paths)
+     * @param outputs the files the stage wrote
+     */
+    public void endStage(Stage stage, List<String> inputs, List<String> outputs) throws IOException, InterruptedException {
+        if (stage.sampler != null) stage.sampler.stop();
+
+        synchronized (this) {
+            stage.wallMillis = System.currentTimeMillis() - stage.start;
+            if (stage.sampler != null) {
+                stage.cpuMillis = stage.sampler.getCpuMillis();
+                stage.peakRssKb = stage.sampler.getPeakRssKb();
+            } else if (stage.startCpuNanos != -1) {
+                stage.cpuMillis = (getJvmCpuNanos() - stage.startCpuNanos) / 1000000;
+            }
+            if (!stage.skipped) {
+                stage.bytesRead = getSize(inputs);
+                stage.bytesWritten = getSize(outputs);
+            }
+            stage.finished = true;
+            if (current == stage) current = null;
+        }
+
+        writeReport();
+    }
+
+    public synchronized void setParseCounts(int sequences, int branches, int substitutions) {
+        this.sequences = sequences;
+        this.branches = branches;
+        this.substitutions = substitutions;
+    }
+
+    public void writeReport() throws IOException {
+        Files.write(getReport(), new File(workingDir, Constants.RUN_REPORT_FILE), Charsets.UTF_8);
+    }
+
+    public synchronized String getReport() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"workingDir\": ").append(quote(workingDir)).append(",\n");
+        json.append("  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            Stage s = stages.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(s.name))
+                    .append(", \"finished\": ").append(s.finished)
+                    .append(", \"skipped\": ").append(s.skipped)
+                    .append(", \"wallMillis\": ").append(s.finished ? s.wallMillis : System.currentTimeMillis() - s.start)
+                    .append(", \"cpuMillis\": ").append(s.cpuMillis)
+                    .append(", \"bytesRead\": ").append(s.bytesRead)
+                    .append(", \"bytesWritten\": ").append(s.bytesWritten)
+                    .append(", \"exitCode\": ").append(s.exitCode)
+                    .append(", \"peakRssKb\": ").append(s.peakRssKb)
+                    .append("}");
+        }
+        json.append("\n  ],\n");
+        json.append("  \"sequences\": ").append(sequences).append(",\n");
+        json.append("  \"branches\": ").append(branches).append(",\n");
+        json.append("  \"substitutions\": ").append(substitutions).append(",\n");
+        json.append("  \"wallMillis\": ").append(getWallMillis()).append(",\n");
+        json.append("  \"cpuMillis\": ").append(getCpuMillis()).append("\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public String getWorkingDir() {
+        return workingDir;
+    }
+
+    public synchronized String getCurrentStage() {
+        return current == null ? null : current.name;
+    }
+
+    public synchronized int getStagesCompleted() {
+        int completed = 0;
+        for (Stage s : stages) if (s.finished) completed++;
+        return completed;
+    }
+
+    public synchronized long getWallMillis() {
+        long total = 0;
+        for (Stage s : stages) if (s.finished) total += s.wallMillis;
+        return total;
+    }
+
+    public synchronized long getCpuMillis() {
+        long total = 0;
+        for (Stage s : stages) if (s.cpuMillis > 0) total += s.cpuMillis;
+        return total;
+    }
+
+    public synchronized long getBytesRead() {
+        long total = 0;
+        for (Stage s : stages) total += s.bytesRead;
+        return total;
+    }
+
+    public synchronized long getBytesWritten() {
+        long total = 0;
+        for (Stage s : stages) total += s.bytesWritten;
+        return total;
+    }
+
+    public synchronized long getPeakProcessRssKb() {
+        long peak = -1;
+        for (Stage s : stages) peak = Math.max(peak, s.peakRssKb);
+        return peak;
+    }
+
+    public synchronized int getSequences() {
+        return sequences;
+    }
+
+    public synchronized int getBranches() {
+        return branches;
+    }
+
+    public synchronized int getSubstitutions() {
+        return substitutions;
+    }
+
+    private long getSize(List<String> files) {
+        long size = 0;
+        for (String name : files) {
+            File f = new File(name).isAbsolute() ? new File(name) : new File(workingDir, name);
+            size += f.length(); // 0 if it doesn't exist
+        }
+        return size;
+    }
+
+    /**
+     * @return CPU time used by the JVM, or -1 if the JVM can't tell us
+     */
+    private static long getJvmCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
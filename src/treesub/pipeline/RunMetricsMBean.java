@@ -0,0 +1,32 @@
+package treesub.pipeline;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The counters of one analysis, as seen through JMX (see RunMetrics).
+ */
+public interface RunMetricsMBean {
+    String getWorkingDir();
+
+    String getCurrentStage();
+
+    int getStagesCompleted();
+
+    long getWallMillis();
+
+    long getCpuMillis();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getPeakProcessRssKb();
+
+    int getSequences();
+
+    int getBranches();
+
+    int getSubstitutions();
+
+    String getReport();
+}
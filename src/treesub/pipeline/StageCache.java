@@ -0,0 +1,164 @@
+package treesub.pipeline;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import treesub.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Remembers, for one working directory, what each stage of the analysis was run on, so a stage can be
+ * skipped when it is run again on the same inputs. A stage's key is a SHA-1 hash of its options (e.g. the
+ * RAxML options or the contents of baseml.ctl) and the contents of its input files. The key is saved in
+ * the working directory along with the size and modification time of each of the stage's outputs, and
+ * the stage is up to date if its key is unchanged and its outputs have not been touched since.
+ *
+ * Hashing a large alignment takes a while, so the hash of each input file is saved too, and only
+ * recalculated if the file's size or modification time has changed.
+ */
+public class StageCache {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File workingDir;
+    private final File file;
+    private final Properties properties = new Properties();
+
+    public StageCache(String workingDir) throws IOException {
+        this.workingDir = new File(workingDir);
+        this.file = new File(workingDir, Constants.STAGE_CACHE_FILE);
+
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @param options anything other than the input files that changes the result of the stage
+     * @param inputs names of the input files, in the working directory (or absolute paths)
+     * @return the key for running the stage with these options and inputs
+     */
+    public String getKey(List<String> options, List<String> inputs) throws IOException {
+        MessageDigest digest = newDigest();
+        for (String option : options) {
+            digest.update(option.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        }
+        for (String input : inputs) {
+            digest.update(input.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(getFileHash(input).getBytes("US-ASCII"));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return true if the stage was last run with this key and its outputs are as it left them
+     */
+    public boolean isUpToDate(String stage, String key, List<String> outputs) {
+        return key.equals(properties.getProperty("stage." + stage + ".key"))
+                && getStamps(outputs).equals(properties.getProperty("stage." + stage + ".outputs"));
+    }
+
+    /**
+     * Records that the stage has just been run, successfully, with this key
+     */
+    public void update(String stage, String key, List<String> outputs) throws IOException {
+        properties.setProperty("stage." + stage + ".key", key);
+        properties.setProperty("stage." + stage + ".outputs", getStamps(outputs));
+        save();
+    }
+
+    /**
+     * Forgets the stage, e.g. because it is about to be run again and will overwrite its outputs
+     */
+    public void remove(String stage) throws IOException {
+        properties.remove("stage." + stage + ".key");
+        properties.remove("stage." + stage + ".outputs");
+        save();
+    }
+
+    private String getFileHash(String name) throws IOException {
+        File f = new File(name).isAbsolute() ? new File(name) : new File(workingDir, name);
+        if (!f.exists()) throw new IOException(String.format("Input file '%s' not found.", f));
+
+        String stamp = getStamp(f);
+        String saved = properties.getProperty("file." + name);
+        if (saved != null && saved.startsWith(stamp + " ")) return saved.substring(stamp.length() + 1);
+
+        String hash = hash(f);
+        properties.setProperty("file." + name, stamp + " " + hash);
+        return hash;
+    }
+
+    private String getStamps(List<String> outputs) {
+        List<String> stamps = Lists.newArrayList();
+        for (String output : outputs) {
+            File f = new File(workingDir, output);
+            stamps.add(f.exists() ? getStamp(f) : "missing");
+        }
+        return Joiner.on(",").join(stamps);
+    }
+
+    private static String getStamp(File f) {
+        return f.length() + ":" + f.lastModified();
+    }
+
+    private static String hash(File f) throws IOException {
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(f);
+        FileChannel channel = in.getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private void save() throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "treesub stage cache - delete this file to run every stage again");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
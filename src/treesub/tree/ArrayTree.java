@@ -0,0 +1,333 @@
+package treesub.tree;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * A tree in parallel arrays indexed by node number, for trees too large to be read comfortably as PAL
+ * trees. Each node has its parent, its first child and next sibling (so children keep the order they were
+ * read in) and the length of the branch above it; leaves also have a name. Reading, rerooting and writing
+ * all walk the arrays with loops rather than recursion, so very deep trees don't overflow the call stack.
+ *
+ * getRootedBy and printNH give exactly the tree PAL's TreeManipulator.getRootedBy and TreeUtils.printNH
+ * give for a single outgroup, so the rooted tree passed to PAML is the same as before.
+ */
+class ArrayTree {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // PAL's NodeUtils.printNH starts a new line at the next token once a line is longer than this
+    private static final int LINE_LENGTH = 70;
+
+    private int size = 0;
+    private int root = -1;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private double[] lengths;
+    private String[] names;
+
+    // Last child of each node, so children can be added in order while the tree is read
+    private int[] lastChildren;
+
+    private ArrayTree(int capacity) {
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        lengths = new double[capacity];
+        names = new String[capacity];
+        lastChildren = new int[capacity];
+    }
+
+    /**
+     * Reads a Newick tree. Internal node names (e.g. support values) are skipped and missing branch
+     * lengths are 0, as with PAL's TreeTool.readTree.
+     */
+    static ArrayTree read(String file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            return read(new NewickTokenizer(in), file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ArrayTree read(NewickTokenizer tokens, String file) throws IOException {
+        ArrayTree tree = new ArrayTree(INITIAL_CAPACITY);
+        int open = -1; // the internal node whose children are being read
+
+        while (true) {
+            // A node: either '(' opening an internal node, or a leaf name
+            int token = tokens.next();
+            if (token == NewickTokenizer.OPEN) {
+                open = tree.addNode(open);
+                continue;
+            }
+            if (token != NewickTokenizer.WORD) throw error(file, tokens, "expected a node name or '('");
+            int node = tree.addNode(open);
+            tree.names[node] = tokens.getWord();
+            token = tokens.next();
+
+            // Its branch length, then any internal nodes that it ends, each with an optional name and length
+            while (true) {
+                if (token == NewickTokenizer.COLON) {
+                    if (tokens.next() != NewickTokenizer.WORD) throw error(file, tokens, "expected a branch length");
+                    try {
+                        tree.lengths[node] = Double.parseDouble(tokens.getWord());
+                    } catch (NumberFormatException e) {
+                        throw error(file, tokens, "bad branch length '" + tokens.getWord() + "'");
+                    }
+                    token = tokens.next();
+                }
+                if (token != NewickTokenizer.CLOSE) break;
+
+                if (open == -1) throw error(file, tokens, "unexpected ')'");
+                node = open;
+                if (tree.nextSiblings[tree.firstChildren[node]] == -1) {
+                    throw error(file, tokens, "node with a single child");
+                }
+                open = tree.parents[node];
+                token = tokens.next();
+                if (token == NewickTokenizer.WORD) token = tokens.next();
+            }
+
+            if (token == NewickTokenizer.COMMA && open != -1) continue;
+            if (token == NewickTokenizer.SEMICOLON && open == -1) break;
+            throw error(file, tokens, open == -1 ? "expected ';'" : "expected ',' or ')'");
+        }
+
+        tree.lastChildren = null;
+        return tree;
+    }
+
+    private static IOException error(String file, NewickTokenizer tokens, String message) {
+        return new IOException(String.format("Could not read the tree in '%s': %s (line %s).", file, message,
+                tokens.getLine()));
+    }
+
+    private int addNode(int parent) {
+        if (size == parents.length) grow(size * 2);
+        int n = size++;
+        parents[n] = parent;
+        firstChildren[n] = -1;
+        nextSiblings[n] = -1;
+        if (parent == -1) {
+            root = n;
+        } else {
+            if (firstChildren[parent] == -1) {
+                firstChildren[parent] = n;
+            } else {
+                nextSiblings[lastChildren[parent]] = n;
+            }
+            lastChildren[parent] = n;
+        }
+        return n;
+    }
+
+    private void grow(int capacity) {
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        names = Arrays.copyOf(names, capacity);
+        lastChildren = Arrays.copyOf(lastChildren, capacity);
+    }
+
+    /**
+     * @return the first leaf with the name, or -1
+     */
+    int find(String name) {
+        for (int n = 0; n < size; n++) {
+            if (firstChildren[n] == -1 && name.equals(names[n])) return n;
+        }
+        return -1;
+    }
+
+    /**
+     * Roots the tree on the branch to the outgroup leaf, as PAL's TreeManipulator.getRootedBy does. The tree
+     * is first taken as unrooted (a bifurcating root is removed, joining the branches to its two children).
+     * The root is then put on the outgroup's branch where the longest paths to a leaf on either side are
+     * equal or, if they can't be made equal on that branch, half way along it. Every node's children are
+     * the node towards the old root followed by its other children in their original order; the new root's
+     * children are the two ends of the outgroup's branch, the outgroup last unless both were children of a
+     * bifurcating root. Internal node names are not kept.
+     *
+     * Each node is visited a fixed number of times, so this is O(nodes).
+     */
+    ArrayTree getRootedBy(String outgroup) {
+        int leaf = find(outgroup);
+        if (leaf == -1) throw new IllegalArgumentException("Outgroup '" + outgroup + "' is not in the tree.");
+        if (parents[leaf] == -1) throw new IllegalArgumentException("The tree must have more than one leaf.");
+
+        // The branch the new root goes on
+        int first, second;
+        double distance;
+        if (parents[leaf] == root && isBifurcatingRoot(root)) {
+            first = firstChildren[root];
+            second = nextSiblings[first];
+            distance = lengths[first] + lengths[second];
+        } else {
+            first = parents[leaf];
+            second = leaf;
+            distance = lengths[leaf];
+        }
+
+        ArrayTree rooted = new ArrayTree(size + 1);
+        rooted.size = size + 1;
+        rooted.root = size;
+        rooted.names = names;
+        rooted.lastChildren = null;
+        Arrays.fill(rooted.firstChildren, -1);
+        Arrays.fill(rooted.nextSiblings, -1);
+        rooted.parents[rooted.root] = -1;
+        rooted.firstChildren[rooted.root] = first;
+        rooted.nextSiblings[first] = second;
+        rooted.parents[first] = rooted.root;
+        rooted.parents[second] = rooted.root;
+
+        // Walk out from the two ends of the root branch, making each node's neighbours (other than the one
+        // it was reached from) its children. preOrder is the order the nodes were reached.
+        int[] from = new int[size];
+        from[first] = second;
+        from[second] = first;
+        int[] preOrder = new int[size];
+        int visited = 0;
+        int[] pending = new int[size];
+        int top = 0;
+        pending[top++] = second;
+        pending[top++] = first;
+
+        while (top > 0) {
+            int n = pending[--top];
+            preOrder[visited++] = n;
+            int last = -1;
+
+            int up = getNeighbourAbove(n);
+            if (up != -1 && up != from[n]) {
+                last = rooted.addChild(n, last, up, getLengthAbove(n));
+                from[up] = n;
+                pending[top++] = up;
+            }
+            for (int c = firstChildren[n]; c != -1; c = nextSiblings[c]) {
+                if (c == from[n]) continue;
+                last = rooted.addChild(n, last, c, lengths[c]);
+                from[c] = n;
+                pending[top++] = c;
+            }
+        }
+
+        // The longest path to a leaf below each node, children before their parents
+        double[] heights = new double[size];
+        for (int i = visited - 1; i >= 0; i--) {
+            int n = preOrder[i];
+            int p = rooted.parents[n];
+            if (p != rooted.root) heights[p] = Math.max(heights[p], heights[n] + rooted.lengths[n]);
+        }
+
+        double difference = heights[first] - heights[second];
+        if (difference > distance || difference < -distance) difference = 0;
+        rooted.lengths[first] = (distance - difference) / 2;
+        rooted.lengths[second] = (distance + difference) / 2;
+
+        return rooted;
+    }
+
+    private boolean isBifurcatingRoot(int n) {
+        return n == root && firstChildren[n] != -1 && nextSiblings[firstChildren[n]] != -1
+                && nextSiblings[nextSiblings[firstChildren[n]]] == -1;
+    }
+
+    // The node joined to n by the branch above it once a bifurcating root is removed, or -1 for the root
+    private int getNeighbourAbove(int n) {
+        int p = parents[n];
+        if (p == -1) return -1;
+        if (isBifurcatingRoot(p)) return firstChildren[p] == n ? nextSiblings[n] : firstChildren[p];
+        return p;
+    }
+
+    private double getLengthAbove(int n) {
+        int p = parents[n];
+        if (isBifurcatingRoot(p)) return lengths[n] + lengths[getNeighbourAbove(n)];
+        return lengths[n];
+    }
+
+    // Adds child as the next child of parent, after last (-1 for the first child), and returns it
+    private int addChild(int parent, int last, int child, double length) {
+        parents[child] = parent;
+        lengths[child] = length;
+        if (last == -1) {
+            firstChildren[parent] = child;
+        } else {
+            nextSiblings[last] = child;
+        }
+        return child;
+    }
+
+    /**
+     * Writes the tree in the same format as PAL's TreeUtils.printNH: branch lengths with 7 decimal places,
+     * no internal node names, and lines broken after 70 characters.
+     */
+    void printNH(PrintWriter out) {
+        NumberFormat format = NumberFormat.getInstance(Locale.UK);
+        format.setGroupingUsed(false);
+        format.setMinimumFractionDigits(7);
+        format.setMaximumFractionDigits(7);
+
+        int column = 0;
+        int n = root;
+        while (true) {
+            // Go down to the first leaf below n, opening the internal nodes on the way
+            column = breakLine(out, column);
+            if (firstChildren[n] != -1) {
+                out.print('(');
+                column++;
+                n = firstChildren[n];
+                continue;
+            }
+
+            // Finish the leaf, and each internal node it is the last leaf of, until there is a next sibling
+            while (true) {
+                if (n == root) {
+                    out.println(";");
+                    return;
+                }
+
+                column = breakLine(out, column);
+                if (firstChildren[n] == -1) {
+                    out.print(names[n]);
+                    column += names[n].length();
+                }
+                out.print(':');
+                column++;
+                column = breakLine(out, column);
+                String length = format.format(lengths[n]);
+                out.print(length);
+                column += length.length();
+
+                if (nextSiblings[n] != -1) {
+                    out.print(',');
+                    column++;
+                    n = nextSiblings[n];
+                    break;
+                }
+                n = parents[n];
+                out.print(')');
+                column++;
+            }
+        }
+    }
+
+    private static int breakLine(PrintWriter out, int column) {
+        if (column > LINE_LENGTH) {
+            out.println();
+            return 0;
+        }
+        return column;
+    }
+}
@@ -1,17 +1,25 @@
 package treesub.tree;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-
-import java.util.HashMap;
-import java.util.List;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * @author tamuri@ebi.ac.uk
  *
+ * The annotations written for a node in the NEXUS tree. REALNAME and NUMBER are stored as given. The
+ * substitution attributes (ALLSUBS, NONSYNSUBS, FULL and NAME_AND_SUBS) are derived from the node's rows of
+ * the BranchSubstitutions (ParseRST's SubstitutionTable) when they are asked for, so we never hold their (possibly very long) Strings for
+ * every node.
+ * Attributes are always written in the order they are declared in Key, followed by any other named
+ * attributes (e.g. the per-gene counts of ParseGenes) in the order they were added.
  */
 public class Attributes {
-    HashMap<Key, String> attributes = Maps.newHashMap();
+    private final EnumMap<Key, String> attributes = new EnumMap<Key, String>(Key.class);
+    private final Map<String, String> others = new LinkedHashMap<String, String>();
+    private BranchSubstitutions substitutions;
+    private int branch;
 
     public Attributes(Key nak, String s) {
         attributes.put(nak, s);
@@ -21,36 +29,130 @@ public class Attributes {
         attributes.put(nak, s);
     }
 
+    /**
+     * Adds an attribute that is not one of the Keys, which is written after them
+     */
+    public void add(String name, String s) {
+        others.put(name, s);
+    }
+
+    /**
+     * Sets the substitutions on the branch to this node (the branch's substitutions in the table), which are
+     * used for the derived attributes
+     */
+    public void setSubstitutions(BranchSubstitutions substitutions, int branch) {
+        this.substitutions = substitutions;
+        this.branch = branch;
+    }
+
     public String get(Key nak) {
-        if (!attributes.containsKey(nak)) return "";
-        return attributes.get(nak);
+        if (!has(nak)) return "";
+        if (attributes.containsKey(nak)) return attributes.get(nak);
+
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendValue(sb, nak);
+        } catch (IOException e) {
+            throw new AssertionError(e); // StringBuilder does not throw
+        }
+        return sb.toString();
     }
 
     public int size() {
-        return attributes.size();
+        int size = 0;
+        for (Key k : Key.values()) {
+            if (has(k)) size++;
+        }
+        return size + others.size();
+    }
+
+    /**
+     * Writes the attributes in NEXUS comment format, e.g. [&NUMBER="1",NONSYNSUBS="[K108Q]"], without
+     * building the derived attributes as Strings first. Writes nothing if there are no attributes.
+     */
+    public void appendTo(Appendable out) throws IOException {
+        boolean first = true;
+        for (Key k : Key.values()) {
+            if (!has(k)) continue;
+
+            out.append(first ? "[&" : ",").append(k.toString()).append("=\"");
+            appendValue(out, k);
+            out.append('"');
+            first = false;
+        }
+        for (Map.Entry<String, String> e : others.entrySet()) {
+            out.append(first ? "[&" : ",").append(e.getKey()).append("=\"").append(e.getValue()).append('"');
+            first = false;
+        }
+        if (!first) out.append(']');
     }
 
     @Override
     public String toString() {
-        if (attributes.size() == 0) {
-            return "";
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendTo(sb);
+        } catch (IOException e) {
+            throw new AssertionError(e); // StringBuilder does not throw
         }
+        return sb.toString();
+    }
 
-        List<Key> entries = Lists.newArrayList(attributes.keySet());
+    private boolean has(Key k) {
+        if (attributes.containsKey(k)) return true;
 
-        String s = String.format("[&%s=\"%s\"", entries.get(0).toString(), attributes.get(entries.get(0)));
+        switch (k) {
+            case ALLSUBS:
+                return substitutions != null && substitutions.size(branch) > 0;
+            case NONSYNSUBS:
+                return hasNonSynonymous();
+            case FULL:
+            case NAME_AND_SUBS:
+                return substitutions != null;
+            default:
+                return false;
+        }
+    }
 
-        for (int i = 1; i < entries.size(); i++) {
-            s += String.format(",%s=\"%s\"", entries.get(i).toString(), attributes.get(entries.get(i)));
+    private void appendValue(Appendable out, Key k) throws IOException {
+        if (attributes.containsKey(k)) {
+            out.append(attributes.get(k));
+            return;
         }
 
-        s += "]";
+        switch (k) {
+            case ALLSUBS:
+                appendSubstitutions(out, false);
+                break;
+            case NONSYNSUBS:
+                appendSubstitutions(out, true);
+                break;
+            case FULL:
+                // e.g. 12 - A/Uruguay/716/2007 [K108Q, P237L]
+                out.append(get(Key.NUMBER)).append(" - ").append(get(Key.REALNAME)).append(' ');
+                if (has(Key.ALLSUBS)) appendValue(out, Key.ALLSUBS);
+                break;
+            case NAME_AND_SUBS:
+                out.append(get(Key.REALNAME)).append(' ');
+                if (has(Key.NONSYNSUBS)) appendValue(out, Key.NONSYNSUBS);
+                break;
+            default:
+                break;
+        }
+    }
 
-        return s;
+    // Same format as List.toString(), e.g. [K108Q, P237L]
+    private void appendSubstitutions(Appendable out, boolean nonSynonymousOnly) throws IOException {
+        substitutions.appendSubstitutions(out, branch, nonSynonymousOnly);
+    }
 
+    private boolean hasNonSynonymous() {
+        return substitutions != null && substitutions.hasNonSynonymous(branch);
     }
 
     public enum Key {
-        REALNAME, ALLSUBS, NUMBER, NONSYNSUBS, FULL, NAME_AND_SUBS
+        REALNAME, ALLSUBS, NUMBER, NONSYNSUBS, FULL, NAME_AND_SUBS,
+        // Number of sites that changed within the clade below an internal node (see CladeSites)
+        CLADESITES, CLADENONSYNSITES
     }
 }
@@ -0,0 +1,23 @@
+package treesub.tree;
+
+import java.io.IOException;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * The substitutions on each branch of a tree, by branch number, from which Attributes derives the
+ * substitution attributes of a node when they are asked for (see treesub.ancestral.SubstitutionTable).
+ */
+public interface BranchSubstitutions {
+    /**
+     * @return the number of substitutions on the branch
+     */
+    int size(int branch);
+
+    boolean hasNonSynonymous(int branch);
+
+    /**
+     * Writes the substitutions on the branch in the same format as List.toString(), e.g. [K108Q, P237L]
+     */
+    void appendSubstitutions(Appendable out, int branch, boolean nonSynonymousOnly) throws IOException;
+}
@@ -0,0 +1,104 @@
+package treesub.tree;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * @author tamuri@ebi.ac.uk
+ *
+ * Splits a Newick tree into tokens as it is read, so the tree's text is never held in memory. The tokens
+ * are the punctuation characters '(', ')', ',', ':' and ';' and words (node names and branch lengths),
+ * which run up to the next punctuation or whitespace. Whitespace and [comments] between tokens are
+ * skipped. Quoted names are not supported, as neither RAxML nor PAML writes them.
+ */
+class NewickTokenizer {
+    static final int END = -1, WORD = 0, OPEN = '(', CLOSE = ')', COMMA = ',', COLON = ':', SEMICOLON = ';';
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private final StringBuilder word = new StringBuilder();
+    private int line = 1;
+
+    NewickTokenizer(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the next token: one of the punctuation characters, WORD (see getWord) or END
+     */
+    int next() throws IOException {
+        int c = read();
+        while (c == '[' || (c != -1 && Character.isWhitespace(c))) {
+            if (c == '[') {
+                while (c != ']') {
+                    c = read();
+                    if (c == -1) throw new IOException(String.format("Unterminated comment in tree (line %s).", line));
+                }
+            }
+            c = read();
+        }
+
+        switch (c) {
+            case -1:
+                return END;
+            case OPEN:
+            case CLOSE:
+            case COMMA:
+            case COLON:
+            case SEMICOLON:
+                return c;
+        }
+
+        word.setLength(0);
+        while (c != -1 && !isDelimiter(c)) {
+            word.append((char) c);
+            c = read();
+        }
+        if (c != -1) unread(c); // the delimiter is the next token
+        return WORD;
+    }
+
+    /**
+     * @return the text of the last WORD token
+     */
+    String getWord() {
+        return word.toString();
+    }
+
+    /**
+     * @return the line of the last token, for error messages
+     */
+    int getLine() {
+        return line;
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c == OPEN || c == CLOSE || c == COMMA || c == COLON || c == SEMICOLON || c == '['
+                || Character.isWhitespace(c);
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        char c = buffer[position++];
+        if (c == '\n') line++;
+        return c;
+    }
+
+    // Always straight after read(), so the character is still in the buffer
+    private void unread(int c) {
+        position--;
+        if (c == '\n') line--;
+    }
+}
@@ -1,12 +1,8 @@
 package treesub.tree;
 
-import pal.tree.Tree;
-import pal.tree.TreeManipulator;
-import pal.tree.TreeTool;
-import pal.tree.TreeUtils;
 import treesub.Constants;
 
-import java.io.FileReader;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 
@@ -15,15 +11,18 @@ import java.io.PrintWriter;
  *
  * The class is used to root the best tree found by RAxML using the outgroup sequence.
  * The outgroup sequence is always "seq_1" which is the first sequence in the original FASTA file.
+ *
+ * The tree is read, rerooted and written as an ArrayTree rather than a PAL tree, in time and memory linear
+ * in the number of nodes, but the rooted tree is written exactly as PAL wrote it.
  */
 public class TreeRerooter {
     public void reroot(String filename, String outfile) throws Exception {
         // Reroot the tree on "seq_1" - the first sequence in the original FASTA file must be the outgroup
         // We need to set this so that ancestral reconstruction is done correctly in PAML
-        Tree tree = TreeTool.readTree(new FileReader(filename));
-        Tree rerootedTree = TreeManipulator.getRootedBy(tree, new String[]{Constants.OUTGROUP_SEQUENCE_NAME});
-        PrintWriter pw = new PrintWriter(new FileWriter(outfile));
-        TreeUtils.printNH(rerootedTree, pw);
+        ArrayTree tree = ArrayTree.read(filename);
+        ArrayTree rerootedTree = tree.getRootedBy(Constants.OUTGROUP_SEQUENCE_NAME);
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(outfile)));
+        rerootedTree.printNH(pw);
         pw.close();
     }
 }